@@ -5,7 +5,10 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 
+import com.taobao.netty.metrics.SampledLog;
+
 public class TimeClientHandler extends ChannelHandlerAdapter{
+	private static final SampledLog LOG = new SampledLog(10);
 	private final ByteBuf firstMessage;
 	private int counter = 0;
 	public TimeClientHandler(){
@@ -33,8 +36,11 @@ public class TimeClientHandler extends ChannelHandlerAdapter{
 //		buf.readBytes(req);
 //		String body = new String(req,"UTF-8");
 		String body = (String) msg;
-		System.out.println("Now is : " + body+"; the counter is " + ++counter);
-		System.out.println("TimeClientHandler channelRead end");
+		++counter;
+		if(LOG.sample()){
+			LOG.log("Now is : " + body+"; the counter is " + counter);
+			LOG.log("TimeClientHandler channelRead end");
+		}
 	}
 	
 	@Override
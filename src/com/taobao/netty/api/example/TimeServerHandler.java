@@ -7,8 +7,12 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 
+import com.taobao.netty.metrics.SampledLog;
+
 public class TimeServerHandler extends ChannelHandlerAdapter{
 	
+	private static final SampledLog LOG = new SampledLog(10);
+	
 	private int counter;
 	
 	@Override
@@ -19,18 +23,27 @@ public class TimeServerHandler extends ChannelHandlerAdapter{
 //		String body = new String(req, "UTF-8")
 //		.substring(0,req.length-System.getProperty("line.separator").length());
 		String body = (String) msg;
-		System.out.println("The time server reveive order : "+body+" ; the counter is "+ ++counter);
+		++counter;
+		// one sample for all lines of a message, so they are logged together
+		boolean logged = LOG.sample();
+		if(logged){
+			LOG.log("The time server reveive order : "+body+" ; the counter is "+ counter);
+		}
 		String currentTime = "QUERY TIME ORDER".equalsIgnoreCase(body) ?
 				new Date(System.currentTimeMillis()).toString() : "BAD ORDER";
 		currentTime = currentTime + System.getProperty("line.separator");
 		ByteBuf resp = Unpooled.copiedBuffer(currentTime.getBytes());
 		ctx.writeAndFlush(resp);
-		System.out.println("TimeServerHandler channelRead end");
+		if(logged){
+			LOG.log("TimeServerHandler channelRead end");
+		}
     }
 	
 	@Override
 	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception{
-		System.out.println("TimeServerHandler channelReadComplete");
+		if(LOG.sample()){
+			LOG.log("TimeServerHandler channelReadComplete");
+		}
 		ctx.flush();
 	}
 	
@@ -0,0 +1,459 @@
+package com.taobao.netty.http.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.CharBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+/**
+ * A directory listing produced while the directory is read, a chunk of
+ * about {@link #CHUNK_SIZE} bytes at a time, so listing a directory takes
+ * the same memory however many entries it has. It is HTML, or JSON with
+ * {@code format=json}.
+ *
+ * Without {@code sort} the entries come in the order the file system gives
+ * them: all of them, or {@code limit} of them after skipping
+ * {@code offset}. With {@code sort=name}, {@code size} or {@code modified},
+ * and {@code order=desc} to reverse it, the directory is read whole and
+ * only the page returned is kept, at most {@link #MAX_LIMIT} entries; the
+ * next page starts {@code after} the last entry of this one. Either way the
+ * listing ends with a link to its next page, if there is one.
+ *
+ * {@link #open()} and {@link #readChunk(ChannelHandlerContext)} read the
+ * directory and block.
+ */
+final class HttpDirectoryListing implements ChunkedInput<ByteBuf> {
+
+	static final int CHUNK_SIZE = 16 * 1024;
+	/** Entries of a sorted page unless {@code limit} says otherwise. */
+	static final int DEFAULT_SORTED_LIMIT = 1000;
+	/** The most entries a sorted page holds. */
+	static final int MAX_LIMIT = 10000;
+
+	private static final Pattern ALLOWED_FILE_NAME = Pattern.compile("[A-Za-z0-9][-_A-Za-z0-9\\.]*");
+
+	private enum Sort {
+		NAME, SIZE, MODIFIED
+	}
+
+	private static final class Entry {
+		final String name;
+		final boolean directory;
+		final long size;
+		final long modified;
+
+		Entry(String name, boolean directory, long size, long modified) {
+			this.name = name;
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	private final File dir;
+	private final boolean json;
+	private final Sort sort;
+	private final boolean descending;
+	private final int offset;
+	private final int limit;
+	/** For sorted pages, the last entry of the previous page. */
+	private final Entry after;
+	private final Comparator<Entry> order;
+
+	private DirectoryStream<Path> stream;
+	private Iterator<Path> paths;
+	private Iterator<Entry> page;
+	private boolean started;
+	private boolean ended;
+	private boolean first = true;
+	private int emitted;
+	private Entry last;
+	private boolean more;
+	/** The whole listing, while it fits in {@link #copyLimit}. */
+	private ByteBuf copy;
+	private int copyLimit;
+
+	private HttpDirectoryListing(File dir, boolean json, Sort sort,
+			boolean descending, int offset, int limit, Entry after) {
+		this.dir = dir;
+		this.json = json;
+		this.sort = sort;
+		this.descending = descending;
+		this.offset = offset;
+		this.limit = limit;
+		this.after = after;
+		order = sort == null ? null : comparator(sort, descending);
+	}
+
+	/**
+	 * The listing of {@code dir} the query parameters ask for.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a parameter has a value it cannot have
+	 */
+	static HttpDirectoryListing create(File dir, Map<String, List<String>> params) {
+		String format = param(params, "format", "html");
+		if (!format.equals("html") && !format.equals("json")) {
+			throw new IllegalArgumentException("format: " + format);
+		}
+		String sortName = param(params, "sort", null);
+		Sort sort;
+		try {
+			sort = sortName == null ? null : Sort.valueOf(sortName.toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("sort: " + sortName);
+		}
+		String order = param(params, "order", "asc");
+		if (!order.equals("asc") && !order.equals("desc")) {
+			throw new IllegalArgumentException("order: " + order);
+		}
+		int limit = intParam(params, "limit", sort == null ? Integer.MAX_VALUE : DEFAULT_SORTED_LIMIT);
+		int offset = intParam(params, "offset", 0);
+		String after = param(params, "after", null);
+		if (limit <= 0 || offset < 0) {
+			throw new IllegalArgumentException("limit: " + limit + ", offset: " + offset);
+		}
+		if (sort == null ? after != null : offset != 0 || limit > MAX_LIMIT) {
+			throw new IllegalArgumentException(
+					"pages of sorted listings go by after and at most " + MAX_LIMIT
+							+ " entries, others by offset");
+		}
+		return new HttpDirectoryListing(dir, format.equals("json"), sort,
+				order.equals("desc"), offset, limit, after == null ? null : cursor(sort, after));
+	}
+
+	private static String param(Map<String, List<String>> params, String name, String defaultValue) {
+		List<String> values = params.get(name);
+		return values == null || values.isEmpty() ? defaultValue : values.get(0);
+	}
+
+	private static int intParam(Map<String, List<String>> params, String name, int defaultValue) {
+		String value = param(params, name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + ": " + value);
+		}
+	}
+
+	String contentType() {
+		return json ? "application/json; charset=UTF-8" : "text/html;charset=UTF-8";
+	}
+
+	/**
+	 * Keeps a copy of the listing as it is produced, if it is not larger
+	 * than {@code maxBytes}, for {@link #takeCopy()}.
+	 */
+	void copyUpTo(int maxBytes) {
+		copyLimit = maxBytes;
+		copy = Unpooled.buffer(Math.min(maxBytes, 4096));
+	}
+
+	/**
+	 * The whole listing kept by {@link #copyUpTo(int)}, owned by the caller
+	 * from now on, or null if it was too large or is not finished.
+	 */
+	ByteBuf takeCopy() {
+		if (!ended || copy == null) {
+			return null;
+		}
+		ByteBuf whole = copy;
+		copy = null;
+		return whole;
+	}
+
+	/**
+	 * Opens the directory, skips to {@code offset}, and for a sorted
+	 * listing reads it whole to find the page.
+	 */
+	void open() throws IOException {
+		stream = Files.newDirectoryStream(dir.toPath());
+		paths = stream.iterator();
+		if (sort == null) {
+			for (int skipped = 0; skipped < offset && paths.hasNext();) {
+				if (entry(paths.next()) != null) {
+					skipped++;
+				}
+			}
+			return;
+		}
+		// the page is the limit first entries after the cursor: the queue
+		// holds them with the last of them on top
+		PriorityQueue<Entry> best = new PriorityQueue<Entry>(Math.min(limit, 1024) + 1,
+				Collections.reverseOrder(order));
+		while (paths.hasNext()) {
+			Entry entry = entry(paths.next());
+			if (entry == null || after != null && order.compare(entry, after) <= 0) {
+				continue;
+			}
+			best.add(entry);
+			if (best.size() > limit) {
+				best.poll();
+				more = true;
+			}
+		}
+		stream.close();
+		stream = null;
+		List<Entry> sorted = new ArrayList<Entry>(best);
+		Collections.sort(sorted, order);
+		page = sorted.iterator();
+	}
+
+	@Override
+	public boolean isEndOfInput() {
+		return ended;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (stream != null) {
+			stream.close();
+			stream = null;
+		}
+		if (copy != null) {
+			copy.release();
+			copy = null;
+		}
+	}
+
+	@Override
+	public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+		if (ended) {
+			return null;
+		}
+		StringBuilder buf = new StringBuilder(CHUNK_SIZE + 256);
+		if (!started) {
+			started = true;
+			head(buf);
+		}
+		while (buf.length() < CHUNK_SIZE) {
+			Entry entry = next();
+			if (entry == null) {
+				tail(buf);
+				ended = true;
+				if (stream != null) {
+					stream.close();
+					stream = null;
+				}
+				break;
+			}
+			append(buf, entry);
+		}
+		ByteBuf chunk = ByteBufUtil.encodeString(ctx.alloc(), CharBuffer.wrap(buf), CharsetUtil.UTF_8);
+		if (copy != null) {
+			if (copy.writerIndex() + chunk.readableBytes() <= copyLimit) {
+				copy.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+			} else {
+				copy.release();
+				copy = null;
+			}
+		}
+		return chunk;
+	}
+
+	private Entry next() {
+		if (page != null) {
+			Entry entry = page.hasNext() ? page.next() : null;
+			if (entry != null) {
+				last = entry;
+			}
+			return entry;
+		}
+		while (paths.hasNext()) {
+			Entry entry = entry(paths.next());
+			if (entry == null) {
+				continue;
+			}
+			if (emitted == limit) {
+				more = true;
+				return null;
+			}
+			emitted++;
+			return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * The entry to list for the path, or null to leave it out: hidden and
+	 * unreadable files, names that would need escaping, and files gone
+	 * since the directory was read.
+	 */
+	private Entry entry(Path path) {
+		String name = path.getFileName().toString();
+		try {
+			if (!ALLOWED_FILE_NAME.matcher(name).matches() || Files.isHidden(path)
+					|| !Files.isReadable(path)) {
+				return null;
+			}
+			if (!json && sort == null) {
+				return new Entry(name, false, 0, 0);
+			}
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			return new Entry(name, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void head(StringBuilder buf) {
+		if (json) {
+			buf.append("{\"path\":\"");
+			appendJsonString(buf, dir.getPath());
+			buf.append("\",\"entries\":[");
+			return;
+		}
+		buf.append("<!DOCTYPE html>\r\n");
+		buf.append("<html><head><title>");
+		buf.append(dir.getPath());
+		buf.append("Ŀ¼");
+		buf.append("</title></head><body>\r\n");
+		buf.append("<ul><li>һ  <a href=\"../\">..</a></li>\r\n");
+	}
+
+	private void append(StringBuilder buf, Entry entry) {
+		if (json) {
+			if (!first) {
+				buf.append(',');
+			}
+			first = false;
+			buf.append("{\"name\":\"").append(entry.name)
+					.append("\",\"type\":\"").append(entry.directory ? "directory" : "file")
+					.append("\",\"size\":").append(entry.size)
+					.append(",\"modified\":").append(entry.modified).append('}');
+			return;
+		}
+		buf.append("<li><a href=\"");
+		buf.append(entry.name);
+		buf.append("\">");
+		buf.append(entry.name);
+		buf.append("</a></li>\r\n");
+	}
+
+	private void tail(StringBuilder buf) {
+		String next = more ? nextPage() : null;
+		if (json) {
+			buf.append("],\"next\":");
+			if (next == null) {
+				buf.append("null");
+			} else {
+				buf.append('"');
+				appendJsonString(buf, next);
+				buf.append('"');
+			}
+			buf.append("}");
+			return;
+		}
+		buf.append("</ul>");
+		if (next != null) {
+			buf.append("<p><a href=\"").append(next.replace("&", "&amp;")).append("\">һҳ</a></p>");
+		}
+		buf.append("</body></html>");
+	}
+
+	/** The query of the page after this one. */
+	private String nextPage() {
+		StringBuilder query = new StringBuilder("?");
+		if (sort == null) {
+			query.append("offset=").append(offset + emitted).append("&limit=").append(limit);
+		} else {
+			query.append("sort=").append(sort.name().toLowerCase(Locale.ENGLISH))
+					.append("&order=").append(descending ? "desc" : "asc")
+					.append("&limit=").append(limit)
+					.append("&after=").append(encode(cursor(last)));
+		}
+		if (json) {
+			query.append("&format=json");
+		}
+		return query.toString();
+	}
+
+	/**
+	 * The cursor of an entry: its name, after its size or modification time
+	 * and a slash when sorted by those; no name contains a slash.
+	 */
+	private String cursor(Entry entry) {
+		switch (sort) {
+		case SIZE:
+			return entry.size + "/" + entry.name;
+		case MODIFIED:
+			return entry.modified + "/" + entry.name;
+		default:
+			return entry.name;
+		}
+	}
+
+	private static Entry cursor(Sort sort, String cursor) {
+		if (sort == Sort.NAME) {
+			return new Entry(cursor, false, 0, 0);
+		}
+		int slash = cursor.indexOf('/');
+		try {
+			long key = Long.parseLong(cursor.substring(0, Math.max(0, slash)));
+			String name = cursor.substring(slash + 1);
+			return sort == Sort.SIZE ? new Entry(name, false, key, 0) : new Entry(name, false, 0, key);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("after: " + cursor);
+		}
+	}
+
+	private static Comparator<Entry> comparator(final Sort sort, boolean descending) {
+		Comparator<Entry> comparator = new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				long x = sort == Sort.SIZE ? a.size : sort == Sort.MODIFIED ? a.modified : 0;
+				long y = sort == Sort.SIZE ? b.size : sort == Sort.MODIFIED ? b.modified : 0;
+				if (x != y) {
+					return x < y ? -1 : 1;
+				}
+				return a.name.compareTo(b.name);
+			}
+		};
+		return descending ? Collections.reverseOrder(comparator) : comparator;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void appendJsonString(StringBuilder buf, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				buf.append('\\').append(c);
+			} else if (c < 0x20) {
+				buf.append(String.format("\\u%04x", (int) c));
+			} else {
+				buf.append(c);
+			}
+		}
+	}
+}
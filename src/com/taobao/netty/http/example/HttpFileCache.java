@@ -0,0 +1,315 @@
+package com.taobao.netty.http.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.StripedCounter;
+
+/**
+ * Contents of small files kept in pooled direct memory, so a file asked for
+ * again is written from memory instead of being opened and read. The cache
+ * holds at most {@code capacity} bytes and drops the least recently used
+ * files to make room for new ones. An entry is only used while the file
+ * still has the modification time and length it had when it was read;
+ * otherwise it is dropped and the file read again.
+ *
+ * Besides the contents themselves the cache can hold them compressed with
+ * a content coding, {@link #GZIP} or {@link #DEFLATE}, so a file is
+ * compressed once per version rather than once per request. For gzip a
+ * sibling file with a {@code .gz} suffix that is not older than the file
+ * is taken as is instead of compressing.
+ *
+ * {@link #get(File, long, long, String)} hands out duplicates that share
+ * the cached memory and hold a reference of their own, so responses are
+ * written without copying and an entry evicted while it is being sent goes
+ * back to the pool only once the last response using it is written.
+ */
+public final class HttpFileCache {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private final long capacity;
+	private final int maxFileSize;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	/** Keys some thread is reading or compressing into the cache. */
+	private final Set<String> loading = new HashSet<String>();
+	private long resident;
+
+	private final StripedCounter hits;
+	private final StripedCounter misses;
+	private final StripedCounter evictions;
+
+	private static final class Entry {
+		final ByteBuf content;
+		final long lastModified;
+		final long length;
+
+		Entry(ByteBuf content, long lastModified, long length) {
+			this.content = content;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            prefix of the metrics of this cache, such as
+	 *            {@code http_cache}
+	 * @param capacity
+	 *            bytes of file contents the cache may hold
+	 * @param maxFileSize
+	 *            files larger than this are never cached
+	 * @param metrics
+	 *            where hits, misses, evictions, the hit percentage and the
+	 *            resident bytes are published
+	 */
+	public HttpFileCache(String name, long capacity, int maxFileSize,
+			Metrics metrics) {
+		if (maxFileSize > capacity) {
+			throw new IllegalArgumentException("maxFileSize: " + maxFileSize
+					+ " (expected: <= capacity " + capacity + ")");
+		}
+		this.capacity = capacity;
+		this.maxFileSize = maxFileSize;
+		hits = metrics.counter(name + "_hits");
+		misses = metrics.counter(name + "_misses");
+		evictions = metrics.counter(name + "_evictions");
+		metrics.gauge(name + "_resident_bytes", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return residentBytes();
+			}
+		});
+		metrics.gauge(name + "_hit_percent", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long h = hits.get();
+				long total = h + misses.get();
+				return total == 0 ? 0 : h * 100 / total;
+			}
+		});
+	}
+
+	/**
+	 * Whether files of this length are small enough to be cached.
+	 */
+	public boolean holds(long length) {
+		return length <= maxFileSize;
+	}
+
+	/**
+	 * Returns the contents of the file, compressed with {@code encoding}
+	 * unless it is null, from the cache or read into it. The modification
+	 * time and length are the caller's view of the file, such as from a
+	 * {@link HttpFileIndex}; an entry is used while they match the ones it
+	 * was read with. Returns null if the file is too large to cache, or if
+	 * another thread is reading it into the cache right now; the caller
+	 * sends the file some other way then rather than wait or read it a
+	 * second time. The caller owns the returned buffer and must release it,
+	 * which writing it does.
+	 */
+	public ByteBuf get(File file, long lastModified, long length,
+			String encoding) throws IOException {
+		if (length > maxFileSize) {
+			return null;
+		}
+		String key = key(file, encoding);
+		synchronized (this) {
+			ByteBuf cached = lookup(key, lastModified, length);
+			if (cached != null) {
+				return cached;
+			}
+			if (!loading.add(key)) {
+				return null;
+			}
+		}
+		misses.increment();
+		ByteBuf content = null;
+		try {
+			content = load(file, (int) length, encoding);
+			ByteBuf duplicate = content.duplicate().retain();
+			synchronized (this) {
+				loading.remove(key);
+				Entry old = entries.put(key, new Entry(content, lastModified,
+						length));
+				if (old != null) {
+					drop(old);
+				}
+				resident += content.capacity();
+				Iterator<Entry> eldest = entries.values().iterator();
+				while (resident > capacity && eldest.hasNext()) {
+					Entry evicted = eldest.next();
+					eldest.remove();
+					drop(evicted);
+					evictions.increment();
+				}
+			}
+			return duplicate;
+		} finally {
+			if (content == null) {
+				synchronized (this) {
+					loading.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #get(File, long, long, String)}, but returns null instead
+	 * of reading the file when it is not cached, so it never waits for the
+	 * file system.
+	 */
+	public ByteBuf peek(File file, long lastModified, long length,
+			String encoding) {
+		if (length > maxFileSize) {
+			return null;
+		}
+		synchronized (this) {
+			return lookup(key(file, encoding), lastModified, length);
+		}
+	}
+
+	private static String key(File file, String encoding) {
+		return encoding == null ? file.getPath() : file.getPath() + ';'
+				+ encoding;
+	}
+
+	/**
+	 * Returns the entry retained if it is current, dropping it if not.
+	 */
+	private ByteBuf lookup(String key, long lastModified, long length) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.lastModified == lastModified && entry.length == length) {
+			hits.increment();
+			return entry.content.duplicate().retain();
+		}
+		entries.remove(key);
+		drop(entry);
+		return null;
+	}
+
+	public synchronized long residentBytes() {
+		return resident;
+	}
+
+	/**
+	 * Drops every entry, such as when the server stops.
+	 */
+	public synchronized void clear() {
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			drop(entry.getValue());
+		}
+		entries.clear();
+	}
+
+	private void drop(Entry entry) {
+		resident -= entry.content.capacity();
+		entry.content.release();
+	}
+
+	private static ByteBuf load(File file, int length, String encoding)
+			throws IOException {
+		if (encoding == null) {
+			return read(file, length);
+		}
+		if (GZIP.equals(encoding)) {
+			File precompressed = new File(file.getPath() + ".gz");
+			if (precompressed.isFile()
+					&& precompressed.lastModified() >= file.lastModified()
+					&& precompressed.length() <= length) {
+				return read(precompressed, (int) precompressed.length());
+			}
+		}
+		return compress(file, length, encoding);
+	}
+
+	private static ByteBuf read(File file, int length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(length,
+				length);
+		try {
+			FileChannel channel = raf.getChannel();
+			while (content.isWritable()) {
+				if (content.writeBytes(channel, content.writableBytes()) < 0) {
+					break;
+				}
+			}
+			return content;
+		} catch (IOException e) {
+			content.release();
+			throw e;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Compresses at the best level, since it is paid once per version of
+	 * the file, and trims the buffer to the compressed size.
+	 */
+	private static ByteBuf compress(File file, int length, String encoding)
+			throws IOException {
+		ByteBuf content = PooledByteBufAllocator.DEFAULT
+				.directBuffer(Math.max(256, length / 4));
+		InputStream in = new FileInputStream(file);
+		Deflater deflater = null;
+		try {
+			OutputStream out;
+			if (GZIP.equals(encoding)) {
+				out = new GZIPOutputStream(new ByteBufOutputStream(content),
+						8192) {
+					{
+						def.setLevel(Deflater.BEST_COMPRESSION);
+					}
+				};
+			} else if (DEFLATE.equals(encoding)) {
+				deflater = new Deflater(Deflater.BEST_COMPRESSION);
+				out = new DeflaterOutputStream(new ByteBufOutputStream(content),
+						deflater, 8192);
+			} else {
+				throw new IllegalArgumentException("encoding: " + encoding);
+			}
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = in.read(chunk)) > 0) {
+				out.write(chunk, 0, n);
+			}
+			out.close();
+			return content.capacity(content.readableBytes());
+		} catch (IOException e) {
+			content.release();
+			throw e;
+		} catch (RuntimeException e) {
+			content.release();
+			throw e;
+		} finally {
+			in.close();
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package com.taobao.netty.http.example;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import javax.activation.MimetypesFileTypeMap;
+
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.StripedCounter;
+
+/**
+ * What the file server knows about the files under its root without
+ * asking the file system again: whether a path exists and what it is, the
+ * length, modification time and content type of files, and rendered
+ * directory listings. A {@link WatchService} on every directory under the
+ * root drops what a change makes stale, so a request for a known path
+ * makes no system calls.
+ *
+ * A change is seen when the watch service reports it, which on some
+ * platforms takes seconds; until then the old metadata is served. Both
+ * tables are bounded and drop their least recently used entries, so
+ * requests for many paths that do not exist cannot grow them without
+ * end. Paths outside the root are looked up every time. The keys of both
+ * tables are also kept sorted, so a change drops its own entries and those
+ * under it without going through the rest, while the event loops may be
+ * waiting for the lock.
+ */
+public final class HttpFileIndex {
+
+	private static final MimetypesFileTypeMap MIME_TYPES = new MimetypesFileTypeMap();
+
+	/** A snapshot of one path. */
+	static final class FileInfo {
+		final File file;
+		final boolean exists;
+		final boolean hidden;
+		final boolean directory;
+		final boolean regular;
+		final long length;
+		final long lastModified;
+		/** For regular files; null otherwise. */
+		final String contentType;
+
+		FileInfo(File file) {
+			this.file = file;
+			exists = file.exists();
+			hidden = exists && file.isHidden();
+			directory = exists && file.isDirectory();
+			regular = exists && file.isFile();
+			length = regular ? file.length() : 0;
+			lastModified = exists ? file.lastModified() : 0;
+			contentType = regular ? MIME_TYPES.getContentType(file.getPath())
+					: null;
+		}
+	}
+
+	private final String root;
+	private final WatchService watcher;
+	private final Map<String, FileInfo> infos;
+	private final Map<String, ByteBuf> listings;
+	/** The keys of {@link #infos} and {@link #listings}, sorted. */
+	private final NavigableSet<String> infoPaths = new TreeSet<String>();
+	private final NavigableSet<String> listingPaths = new TreeSet<String>();
+	/** Counts invalidations, so a lookup racing with one is not stored. */
+	private long generation;
+
+	private final StripedCounter hits;
+	private final StripedCounter misses;
+	private final StripedCounter invalidations;
+
+	/**
+	 * Starts watching every directory under {@code root}.
+	 *
+	 * @param maxFiles
+	 *            paths whose metadata is kept
+	 * @param maxListings
+	 *            directories whose listing is kept
+	 */
+	public HttpFileIndex(File root, final int maxFiles, final int maxListings,
+			Metrics metrics) throws IOException {
+		this.root = root.getPath();
+		infos = new LinkedHashMap<String, FileInfo>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FileInfo> eldest) {
+				if (size() > maxFiles) {
+					infoPaths.remove(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+		listings = new LinkedHashMap<String, ByteBuf>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ByteBuf> eldest) {
+				if (size() > maxListings) {
+					listingPaths.remove(eldest.getKey());
+					eldest.getValue().release();
+					return true;
+				}
+				return false;
+			}
+		};
+		hits = metrics.counter("http_index_hits");
+		misses = metrics.counter("http_index_misses");
+		invalidations = metrics.counter("http_index_invalidations");
+		watcher = FileSystems.getDefault().newWatchService();
+		registerAll(root.toPath());
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "http-file-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Looks a path up without the cache, for servers that have no index.
+	 */
+	static FileInfo stat(String path) {
+		return new FileInfo(new File(path));
+	}
+
+	FileInfo get(String path) {
+		File file = new File(path);
+		String key = file.getPath();
+		if (!isUnderRoot(key)) {
+			return new FileInfo(file);
+		}
+		long seen;
+		synchronized (this) {
+			FileInfo info = infos.get(key);
+			if (info != null) {
+				hits.increment();
+				return info;
+			}
+			seen = generation;
+		}
+		misses.increment();
+		FileInfo info = new FileInfo(file);
+		synchronized (this) {
+			if (generation == seen) {
+				infos.put(key, info);
+				infoPaths.add(key);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Returns what the index knows about the path, or null if it would have
+	 * to ask the file system.
+	 */
+	FileInfo peek(String path) {
+		String key = new File(path).getPath();
+		synchronized (this) {
+			FileInfo info = infos.get(key);
+			if (info != null) {
+				hits.increment();
+			}
+			return info;
+		}
+	}
+
+	/**
+	 * Returns the listing rendered for the directory, retained for the
+	 * caller, or null if there is none.
+	 */
+	synchronized ByteBuf listing(File dir) {
+		ByteBuf listing = listings.get(dir.getPath());
+		return listing == null ? null : listing.duplicate().retain();
+	}
+
+	/**
+	 * The value to pass to {@link #putListing(File, ByteBuf, long)} for a
+	 * listing rendered after this call.
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Keeps a rendered listing, unless something changed since
+	 * {@code generation}, and returns it retained for the caller. The index
+	 * owns {@code listing} afterwards.
+	 */
+	synchronized ByteBuf putListing(File dir, ByteBuf listing, long generation) {
+		ByteBuf duplicate = listing.duplicate().retain();
+		if (generation == this.generation && isUnderRoot(dir.getPath())) {
+			ByteBuf old = listings.put(dir.getPath(), listing);
+			if (old != null) {
+				old.release();
+			}
+			listingPaths.add(dir.getPath());
+		} else {
+			listing.release();
+		}
+		return duplicate;
+	}
+
+	/**
+	 * Drops what is known about a file the server changed itself, and the
+	 * listing of its directory, without waiting for the watch service to
+	 * report it.
+	 */
+	void invalidate(File file) {
+		invalidate(file.getPath(), true);
+		File dir = file.getParentFile();
+		if (dir != null) {
+			invalidate(dir.getPath(), false);
+		}
+	}
+
+	/**
+	 * Stops watching and drops everything.
+	 */
+	public void close() throws IOException {
+		watcher.close();
+		synchronized (this) {
+			generation++;
+			infos.clear();
+			infoPaths.clear();
+			listingPaths.clear();
+			for (ByteBuf listing : listings.values()) {
+				listing.release();
+			}
+			listings.clear();
+		}
+	}
+
+	private boolean isUnderRoot(String path) {
+		return path.equals(root) || path.startsWith(root + File.separator);
+	}
+
+	private void registerAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void watch() {
+		try {
+			for (;;) {
+				WatchKey key = watcher.take();
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						invalidate(dir.toString(), true);
+						continue;
+					}
+					Path child = dir.resolve((Path) event.context());
+					invalidate(child.toString(), true);
+					invalidate(dir.toString(), false);
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+							&& Files.isDirectory(child)) {
+						try {
+							registerAll(child);
+						} catch (IOException e) {
+							// gone again, or unreadable: nothing to watch
+						}
+						// created with contents before it was watched
+						invalidate(child.toString(), true);
+					}
+				}
+				key.reset();
+			}
+		} catch (InterruptedException e) {
+			// exit
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Drops the path and its listing, and with {@code subtree} everything
+	 * under it too. Only the entries dropped are visited.
+	 */
+	private synchronized void invalidate(String path, boolean subtree) {
+		generation++;
+		invalidations.increment();
+		if (infos.remove(path) != null) {
+			infoPaths.remove(path);
+		}
+		ByteBuf listing = listings.remove(path);
+		if (listing != null) {
+			listingPaths.remove(path);
+			listing.release();
+		}
+		if (!subtree) {
+			return;
+		}
+		// every path under the directory sorts between these two
+		String from = path + File.separator;
+		String to = path + (char) (File.separatorChar + 1);
+		Iterator<String> it = infoPaths.subSet(from, to).iterator();
+		while (it.hasNext()) {
+			infos.remove(it.next());
+			it.remove();
+		}
+		it = listingPaths.subSet(from, to).iterator();
+		while (it.hasNext()) {
+			listings.remove(it.next()).release();
+			it.remove();
+		}
+	}
+}
@@ -7,23 +7,102 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.taobao.netty.metrics.EventLoopProbe;
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.MetricsHandler;
 
 public class HttpFileServer {
 	private static final String DEFAULT_URL = "/src/com/taobao";
+	/** Bytes of small files kept in memory, and the largest file kept. */
+	private static final long CACHE_CAPACITY = 64 * 1024 * 1024;
+	private static final int CACHE_MAX_FILE_SIZE = 256 * 1024;
+	/**
+	 * Bytes of files up to MAPPED_MAX_FILE_SIZE kept mapped, 0 to not map
+	 * files. Connections that can use sendfile only map files up to 1 MB.
+	 */
+	private static final long MAPPED_BYTES = 1024 * 1024 * 1024;
+	private static final long MAPPED_MAX_FILE_SIZE = 64 * 1024 * 1024;
+	/** Bytes of compressed text kept, and the largest file compressed. */
+	private static final long COMPRESSED_CAPACITY = 32 * 1024 * 1024;
+	private static final int COMPRESSED_MAX_FILE_SIZE = 8 * 1024 * 1024;
+	/** Paths whose metadata is kept, and directories whose listing is. */
+	private static final int INDEX_MAX_FILES = 65536;
+	private static final int INDEX_MAX_LISTINGS = 1024;
+	/**
+	 * Threads that wait for the file system instead of the event loops, and
+	 * the requests that may wait for one of them before getting a 503. A
+	 * connection has at most one request there at a time.
+	 */
+	private static final int IO_THREADS = 16;
+	private static final int IO_QUEUE = 1024;
+	/** How often each event loop is checked for being held up. */
+	private static final long LOOP_PROBE_MILLIS = 10;
+	/**
+	 * Where {@code /metrics} is served. Not on the file port: the file
+	 * handler answers pipelined requests in order, which a handler in front
+	 * of it cannot keep to.
+	 */
+	private static final int METRICS_PORT = 8082;
+	/** The largest piece of a body the decoder hands on at once. */
+	private static final int MAX_CHUNK_SIZE = 64 * 1024;
 	
+	/** Whether PUT and POST may create and replace files under the url. */
+	private final boolean uploads;
+
+	public HttpFileServer() {
+		this(false);
+	}
+
+	/**
+	 * @param uploads
+	 *            whether anyone who can reach the server may create and
+	 *            replace files under the url with PUT and POST; there is no
+	 *            authentication
+	 */
+	public HttpFileServer(boolean uploads) {
+		this.uploads = uploads;
+	}
+
+	/**
+	 * Serves on port 80; the argument {@code --uploads} switches uploads on.
+	 */
 	public static void main(String[] args) throws Exception {
 		int port = 80;
 		String url = DEFAULT_URL;
-		new HttpFileServer().run(port, url);
+		boolean uploads = args.length > 0 && "--uploads".equals(args[0]);
+		new HttpFileServer(uploads).run(port, url);
 	}
 	
 	public void run(final int port, final String url) throws Exception{
 		EventLoopGroup bossGroup = new NioEventLoopGroup();
 		EventLoopGroup workerGroup = new NioEventLoopGroup();
+		final HttpFileIndex index = new HttpFileIndex(new File(System.getProperty("user.dir"), url),
+				INDEX_MAX_FILES, INDEX_MAX_LISTINGS, Metrics.DEFAULT);
+		final HttpFileCache cache = new HttpFileCache("http_cache", CACHE_CAPACITY, CACHE_MAX_FILE_SIZE, Metrics.DEFAULT);
+		final HttpFileCache compressedCache = new HttpFileCache("http_compressed_cache", COMPRESSED_CAPACITY,
+				COMPRESSED_MAX_FILE_SIZE, Metrics.DEFAULT);
+		final HttpMappedFiles mappedFiles = MAPPED_BYTES == 0 ? null
+				: new HttpMappedFiles(MAPPED_BYTES, CACHE_MAX_FILE_SIZE + 1, MAPPED_MAX_FILE_SIZE, Metrics.DEFAULT);
+		final ThreadPoolExecutor ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(IO_QUEUE), new DefaultThreadFactory("http-io", true));
+		Metrics.DEFAULT.gauge("http_io_queue_depth", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return ioExecutor.getQueue().size();
+			}
+		});
+		EventLoopProbe.watch(workerGroup, Metrics.DEFAULT.histogram("http_event_loop_delay_nanos"),
+				LOOP_PROBE_MILLIS, TimeUnit.MILLISECONDS);
 		try{
 			ServerBootstrap b = new ServerBootstrap();
 			b.group(bossGroup, workerGroup)
@@ -32,20 +111,35 @@ public class HttpFileServer {
 
 				@Override
 				protected void initChannel(SocketChannel ch) throws Exception {
-					ch.pipeline().addLast("http-decoder",new HttpRequestDecoder());
-					ch.pipeline().addLast("http-aggregator", new HttpObjectAggregator(65536));
+					ch.pipeline().addLast("http-decoder",new HttpRequestDecoder(4096, 8192, MAX_CHUNK_SIZE));
 					ch.pipeline().addLast("http-encoder", new HttpResponseEncoder());
 					ch.pipeline().addLast("http-chunked", new ChunkedWriteHandler());
-					ch.pipeline().addLast("fileServerhandler", new HttpFileServerHandler(url));
+					ch.pipeline().addLast("fileServerhandler", new HttpFileServerHandler(url, index, cache, mappedFiles,
+							compressedCache, ioExecutor, uploads));
 				}
 				
 			});
+			Metrics.DEFAULT.registerMBean("http");
 			ChannelFuture future = b.bind("127.0.0.1",port).sync();
 			System.out.println("HTTP Server start");
+			ChannelFuture metrics = MetricsHandler.listen(bossGroup, "127.0.0.1", METRICS_PORT, Metrics.DEFAULT)
+					.awaitUninterruptibly();
+			if(metrics.isSuccess()){
+				System.out.println("Metrics at http://127.0.0.1:" + METRICS_PORT + MetricsHandler.PATH);
+			}else{
+				System.out.println("Metrics not served: " + metrics.cause());
+			}
 			future.channel().closeFuture().sync();
 		}finally{
 			bossGroup.shutdownGracefully();
 			workerGroup.shutdownGracefully();
+			ioExecutor.shutdown();
+			index.close();
+			cache.clear();
+			compressedCache.clear();
+			if(mappedFiles != null){
+				mappedFiles.clear();
+			}
 		}
 	}
 }
@@ -2,16 +2,27 @@ package com.taobao.netty.http.example;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
-import javax.activation.MimetypesFileTypeMap;
-
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
@@ -19,171 +30,1173 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelProgressiveFuture;
 import io.netty.channel.ChannelProgressiveFutureListener;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.HttpHeaders.Names;
 import io.netty.handler.codec.spdy.SpdyHeaders.HttpNames;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedFile;
 import io.netty.util.CharsetUtil;
 
-public class HttpFileServerHandler extends SimpleChannelInboundHandler<FullHttpRequest>{
+import com.taobao.netty.http.example.HttpFileIndex.FileInfo;
+import com.taobao.netty.metrics.Histogram;
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.SampledLog;
+import com.taobao.netty.metrics.StripedCounter;
+
+public class HttpFileServerHandler extends SimpleChannelInboundHandler<HttpObject>{
 	private final String url;
+	private final HttpFileIndex index;
+	private final HttpFileCache cache;
+	private final HttpMappedFiles mappedFiles;
+	private final HttpFileCache compressedCache;
+	private final Executor ioExecutor;
+	private final boolean uploads;
+	
+	/** Requests of this channel not answered yet, touched on its event loop only. */
+	private final Queue<HttpRequest> waiting = new ArrayDeque<HttpRequest>();
+	/** The uploads among {@link #waiting}, in the same order. */
+	private final Queue<Upload> uploadQueue = new ArrayDeque<Upload>();
+	/** Whether the head of {@link #waiting} is being answered on {@link #ioExecutor}. */
+	private boolean busy;
+	/** The upload being written, once it left the queues. */
+	private Upload active;
+	/** The upload whose body is still coming in. */
+	private Upload receiving;
+	/** The listing being streamed, set by whoever sent its headers. */
+	private Listing streaming;
+	private boolean readPaused;
 	
 	private static final Pattern INSECURE_URI = Pattern.compile(".*[<>&\"].*");
-	private static final Pattern ALLOWED_FILE_NAME = Pattern.compile("[A-Za-z0-9][-_A-Za-z0-9\\.]*");
+	
+	private static final SampledLog LOG = new SampledLog(10);
+	private static final StripedCounter BYTES_SENT = Metrics.DEFAULT.counter("http_file_bytes_sent");
+	private static final Histogram TRANSFER_NANOS = Metrics.DEFAULT.histogram("http_file_transfer_nanos");
+	private static final StripedCounter IO_TASKS = Metrics.DEFAULT.counter("http_io_tasks");
+	private static final StripedCounter IO_REJECTED = Metrics.DEFAULT.counter("http_io_rejected");
+	
+	/** Requests for more ranges than this get the whole file. */
+	private static final int MAX_RANGES = 16;
+	private static final Random BOUNDARIES = new Random();
+	/**
+	 * Where a pipeline can use sendfile, files above this are not sent from
+	 * a mapping: copying them out of it costs more CPU than sendfile does.
+	 */
+	private static final long MAPPED_MAX_ZERO_COPY_SIZE = 1024 * 1024;
+	/** Larger uploads get a 413. */
+	private static final long MAX_UPLOAD_SIZE = 1024L * 1024 * 1024;
+	/** Bytes of an upload's body held in memory before reading stops for the disk to catch up. */
+	private static final int UPLOAD_BUFFER = 256 * 1024;
+	/** Listings up to this size are kept in the index when it has room. */
+	private static final int LISTING_CACHE_MAX_SIZE = 64 * 1024;
 	
 	public HttpFileServerHandler(String url) {
+		this(url, null, null, null, null, null, false);
+	}
+	
+	/**
+	 * @param index
+	 *            where metadata and listings of the files are looked up,
+	 *            shared by the handlers of all channels; null to ask the
+	 *            file system on every request
+	 * @param cache
+	 *            where whole small files are served from, shared by the
+	 *            handlers of all channels; null to always read the file
+	 * @param mappedFiles
+	 *            where whole medium sized files are served from, shared
+	 *            like the cache; null to not map files
+	 * @param compressedCache
+	 *            where gzip and deflate encodings of text files are kept,
+	 *            shared like the cache; null to never compress
+	 * @param ioExecutor
+	 *            where requests that have to wait for the file system are
+	 *            answered, shared by the handlers of all channels; null to
+	 *            answer them on the event loop
+	 * @param uploads
+	 *            whether PUT and POST write their body to the file the URI
+	 *            names, creating or replacing it
+	 */
+	public HttpFileServerHandler(String url, HttpFileIndex index, HttpFileCache cache,
+			HttpMappedFiles mappedFiles, HttpFileCache compressedCache, Executor ioExecutor,
+			boolean uploads) {
 		this.url = url;
+		this.index = index;
+		this.cache = cache;
+		this.mappedFiles = mappedFiles;
+		this.compressedCache = compressedCache;
+		this.ioExecutor = ioExecutor;
+		this.uploads = uploads;
 	}
 
+	/**
+	 * Takes requests as the decoder streams them, without aggregating:
+	 * bodies only matter to uploads, whose contents are queued for the disk
+	 * as they come, and are dropped for everything else.
+	 */
 	@Override
 	protected void messageReceived(ChannelHandlerContext ctx,
-			FullHttpRequest request) throws Exception {
+			HttpObject msg) throws Exception {
+		if(msg instanceof HttpRequest){
+			HttpRequest request = (HttpRequest) msg;
+			waiting.add(request);
+			if(isUpload(request)){
+				Upload upload = new Upload(request);
+				uploadQueue.add(upload);
+				receiving = upload;
+			}
+		}
+		if(msg instanceof HttpContent && receiving != null){
+			Upload upload = receiving;
+			ByteBuf content = ((HttpContent) msg).content();
+			if(content.isReadable() && !upload.failed){
+				upload.pending.add(content.retain());
+				upload.pendingBytes += content.readableBytes();
+			}
+			if(msg instanceof LastHttpContent){
+				upload.complete = true;
+				receiving = null;
+			}
+			if(upload == active){
+				pump(ctx, upload);
+			}
+		}
+		if(!busy){
+			next(ctx);
+		}else{
+			updateReading(ctx);
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		for(Upload upload : uploadQueue){
+			upload.releasePending();
+		}
+		uploadQueue.clear();
+		if(active != null && !active.writing){
+			discard(active);
+		}
+		super.channelInactive(ctx);
+	}
+
+	private boolean isUpload(HttpRequest request){
+		return uploads && request.getDecoderResult().isSuccess()
+				&& (request.getMethod() == HttpMethod.PUT || request.getMethod() == HttpMethod.POST);
+	}
+
+	/**
+	 * Reads on while nothing is being answered, and while an upload is being
+	 * written whose body is still coming in and does not fill
+	 * {@link #UPLOAD_BUFFER} yet; so requests wait in the socket while
+	 * earlier ones are answered, and a body no faster than the disk.
+	 */
+	private void updateReading(ChannelHandlerContext ctx){
+		boolean read = !busy || active != null && active == receiving
+				&& active.pendingBytes < UPLOAD_BUFFER;
+		if(read == readPaused){
+			readPaused = !read;
+			ctx.channel().config().setAutoRead(read);
+		}
+	}
+
+	/**
+	 * Answers the waiting requests in the order they came. Whatever can be
+	 * answered from memory is answered right here on the event loop. The
+	 * first request that has to touch the file system goes to
+	 * {@link #ioExecutor}, and the requests after it wait, with reading
+	 * stopped, until the loop learns it is answered: so responses to
+	 * pipelined requests leave in order, and the loop never waits for the
+	 * disk. Writes made from the I/O thread are queued to the loop ahead of
+	 * that news, so the next response cannot overtake them.
+	 */
+	private void next(final ChannelHandlerContext ctx){
+		while(!busy){
+			final HttpRequest request = waiting.poll();
+			if(request == null){
+				break;
+			}
+			Upload upload = isUpload(request) ? uploadQueue.poll() : null;
+			if(!ctx.channel().isActive()){
+				if(upload != null){
+					upload.releasePending();
+				}
+				continue;
+			}
+			if(upload != null){
+				startUpload(ctx, upload);
+				continue;
+			}
+			boolean answered = true;
+			try{
+				answered = respond(ctx, request, ioExecutor == null);
+			}catch(Exception e){
+				exceptionCaught(ctx, e);
+			}
+			if(answered){
+				if(streaming != null){
+					busy = true;
+					pumpListing(ctx);
+				}
+				continue;
+			}
+			try{
+				ioExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try{
+							respond(ctx, request, true);
+						}catch(Throwable t){
+							exceptionCaught(ctx, t);
+						}
+						ctx.executor().execute(new Runnable() {
+							@Override
+							public void run() {
+								if(streaming != null){
+									pumpListing(ctx);
+									return;
+								}
+								busy = false;
+								next(ctx);
+							}
+						});
+					}
+				});
+			}catch(RejectedExecutionException e){
+				IO_REJECTED.increment();
+				waiting.clear();
+				sendError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE);
+				return;
+			}
+			IO_TASKS.increment();
+			busy = true;
+		}
+		updateReading(ctx);
+	}
+
+	/**
+	 * A PUT or POST body on its way to a file. It is written to a hidden
+	 * file next to the target and moved over the target once complete, so
+	 * nobody reads a half written file, and mappings of the old file stay
+	 * valid. The event loop queues the contents and hands them to the I/O
+	 * executor one batch at a time; the methods that touch the file run
+	 * there.
+	 */
+	private static final class Upload {
+		final HttpRequest request;
+		final Queue<ByteBuf> pending = new ArrayDeque<ByteBuf>();
+		int pendingBytes;
+		/** The last content came in. */
+		boolean complete;
+		/** The file is being opened or written on the I/O executor. */
+		boolean writing;
+		/** Given up on: contents coming in are dropped. */
+		boolean failed;
+		File target;
+		File temp;
+		FileChannel channel;
+		long written;
+
+		Upload(HttpRequest request) {
+			this.request = request;
+		}
+
+		/** Returns null, or the status to fail the upload with. */
+		HttpResponseStatus open(File target) throws IOException {
+			File dir = target.getParentFile();
+			if(target.isDirectory() || dir == null || !dir.isDirectory()){
+				return HttpResponseStatus.CONFLICT;
+			}
+			this.target = target;
+			temp = File.createTempFile(".upload-", ".tmp", dir);
+			channel = new FileOutputStream(temp).getChannel();
+			return null;
+		}
+
+		/** Writes and releases the buffers. */
+		HttpResponseStatus write(ByteBuf[] contents) throws IOException {
+			try{
+				long length = 0;
+				for(ByteBuf content : contents){
+					length += content.readableBytes();
+				}
+				if(written + length > MAX_UPLOAD_SIZE){
+					return HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+				}
+				List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(contents.length);
+				for(ByteBuf content : contents){
+					Collections.addAll(buffers, content.nioBuffers());
+				}
+				ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+				long left = length;
+				while(left > 0){
+					left -= channel.write(array);
+				}
+				written += length;
+				return null;
+			}finally{
+				for(ByteBuf content : contents){
+					content.release();
+				}
+			}
+		}
+
+		/** Puts the file in place: 201 if it is new, 204 if it replaced one. */
+		HttpResponseStatus finish() throws IOException {
+			channel.close();
+			boolean existed = target.exists();
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+			return existed ? HttpResponseStatus.NO_CONTENT : HttpResponseStatus.CREATED;
+		}
+
+		void delete() {
+			try{
+				if(channel != null){
+					channel.close();
+				}
+			}catch(IOException e){
+				// deleting it anyway
+			}
+			if(temp != null){
+				temp.delete();
+				temp = null;
+			}
+		}
+
+		void releasePending() {
+			failed = true;
+			for(ByteBuf content : pending){
+				content.release();
+			}
+			pending.clear();
+			pendingBytes = 0;
+		}
+	}
+
+	/**
+	 * Checks the upload and opens its file on the I/O executor; the body
+	 * that came in meanwhile is written once it is open.
+	 */
+	private void startUpload(final ChannelHandlerContext ctx, final Upload upload){
+		String path = sanitizeUri(uriPath(upload.request.getUri()));
+		HttpResponseStatus status = null;
+		if(path == null){
+			status = HttpResponseStatus.FORBIDDEN;
+		}else if(HttpHeaders.getContentLength(upload.request, 0) > MAX_UPLOAD_SIZE){
+			status = HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+		}
+		if(status != null){
+			upload.releasePending();
+			sendError(ctx, status);
+			return;
+		}
+		final File target = new File(path);
+		busy = true;
+		active = upload;
+		upload.writing = true;
+		offload(ctx, upload, new Runnable() {
+			@Override
+			public void run() {
+				HttpResponseStatus failure;
+				try{
+					failure = upload.open(target);
+				}catch(IOException e){
+					failure = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+				}
+				final HttpResponseStatus done = failure;
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						upload.writing = false;
+						if(done != null){
+							finishUpload(ctx, upload, done);
+							return;
+						}
+						if(HttpHeaders.is100ContinueExpected(upload.request) && ctx.channel().isActive()){
+							ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+									HttpResponseStatus.CONTINUE));
+						}
+						pump(ctx, upload);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Hands the body that came in so far to the I/O executor, one batch at a
+	 * time, and once all of it is written puts the file in place.
+	 */
+	private void pump(final ChannelHandlerContext ctx, final Upload upload){
+		if(upload.writing){
+			return;
+		}
+		if(!ctx.channel().isActive()){
+			discard(upload);
+			return;
+		}
+		if(upload.pending.isEmpty() && !upload.complete){
+			updateReading(ctx);
+			return;
+		}
+		final ByteBuf[] contents = upload.pending.toArray(new ByteBuf[upload.pending.size()]);
+		final boolean last = upload.complete;
+		upload.pending.clear();
+		upload.pendingBytes = 0;
+		upload.writing = true;
+		updateReading(ctx);
+		offload(ctx, upload, new Runnable() {
+			@Override
+			public void run() {
+				HttpResponseStatus status;
+				try{
+					status = upload.write(contents);
+					if(status == null && last){
+						status = upload.finish();
+						if(index != null){
+							// the next request may come before the watch service tells
+							index.invalidate(upload.target);
+						}
+					}
+				}catch(IOException e){
+					status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+				}
+				final HttpResponseStatus done = status;
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						upload.writing = false;
+						if(done == null){
+							pump(ctx, upload);
+						}else{
+							finishUpload(ctx, upload, done);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Answers the upload and goes on with the next request. A failed upload
+	 * closes the connection, since the rest of its body was not read.
+	 */
+	private void finishUpload(ChannelHandlerContext ctx, Upload upload, HttpResponseStatus status){
+		active = null;
+		busy = false;
+		if(status == HttpResponseStatus.CREATED || status == HttpResponseStatus.NO_CONTENT){
+			FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+			if(status == HttpResponseStatus.CREATED){
+				response.headers().set(Names.LOCATION, uriPath(upload.request.getUri()));
+				HttpHeaders.setContentLength(response, 0);
+			}
+			sendFull(ctx, response, upload.request);
+			next(ctx);
+			return;
+		}
+		discard(upload);
+		waiting.clear();
+		sendError(ctx, status);
+	}
+
+	/**
+	 * Drops what is left of an upload that will not complete.
+	 */
+	private void discard(final Upload upload){
+		upload.releasePending();
+		if(active == upload){
+			active = null;
+		}
+		Runnable delete = new Runnable() {
+			@Override
+			public void run() {
+				upload.delete();
+			}
+		};
+		if(ioExecutor == null){
+			delete.run();
+			return;
+		}
+		try{
+			ioExecutor.execute(delete);
+		}catch(RejectedExecutionException e){
+			delete.run();
+		}
+	}
+
+	/**
+	 * Runs a step of an upload on {@link #ioExecutor}, or right away without
+	 * one; an upload the executor has no room for fails with a 503.
+	 */
+	private void offload(ChannelHandlerContext ctx, Upload upload, Runnable task){
+		if(ioExecutor == null){
+			task.run();
+			return;
+		}
+		try{
+			ioExecutor.execute(task);
+			IO_TASKS.increment();
+		}catch(RejectedExecutionException e){
+			IO_REJECTED.increment();
+			upload.writing = false;
+			finishUpload(ctx, upload, HttpResponseStatus.SERVICE_UNAVAILABLE);
+		}
+	}
+
+	/**
+	 * Answers the request. Unless {@code mayBlock}, only from what is in
+	 * memory: then it returns false, having written nothing, if answering
+	 * needs the file system.
+	 */
+	private boolean respond(ChannelHandlerContext ctx, HttpRequest request, boolean mayBlock) throws Exception {
 		if(!request.getDecoderResult().isSuccess()){
 			sendError(ctx,HttpResponseStatus.BAD_REQUEST);
-			return;
+			return true;
 		}
 		
 		if(request.getMethod()!= HttpMethod.GET){
 			sendError(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED);
-			return;
+			return true;
 		}
 		final String uri = request.getUri();
-		final String path = sanitizeUri(uri);
+		final String uriPath = uriPath(uri);
+		final String query = uri.substring(uriPath.length());
+		final String path = sanitizeUri(uriPath);
 		if(path == null){
 			sendError(ctx, HttpResponseStatus.FORBIDDEN);
-			return;
+			return true;
+		}
+		FileInfo info;
+		if(index != null){
+			info = mayBlock ? index.get(path) : index.peek(path);
+		}else{
+			info = mayBlock ? HttpFileIndex.stat(path) : null;
 		}
-		File file = new File(path);
-		if(file.isHidden() || !file.exists()){
+		if(info == null){
+			return false;
+		}
+		if(info.hidden || !info.exists){
 			sendError(ctx, HttpResponseStatus.NOT_FOUND);
-			return;
+			return true;
 		}
-		if(file.isDirectory()){
-			if(uri.endsWith("/")){
-				sendListing(ctx,file,request);
-			}else{
-				sendRedirect(ctx,uri+"/");
+		if(info.directory){
+			if(uriPath.endsWith("/")){
+				return sendListing(ctx,info.file,request,query,mayBlock);
 			}
-			return;
+			sendRedirect(ctx,uriPath+"/"+query);
+			return true;
 		}
-		if(!file.isFile()){
+		if(!info.regular){
 			sendError(ctx, HttpResponseStatus.FORBIDDEN);
-			return;
+			return true;
 		}
-		if(uri.endsWith("html")){
-			sendHtml(ctx, file, request);
-			return;
+		String contentType = uriPath.endsWith("html") ? "text/html;charset=ISO_8859_1" : info.contentType;
+		String encoding = contentEncoding(request, info, contentType);
+		if(isNotModified(request, info, encoding)){
+			sendNotModified(ctx, info, request, contentType, encoding);
+			return true;
 		}
-		sendFile(ctx, file, request);		
+		if(encoding != null){
+			if(sendCompressed(ctx, info, request, contentType, encoding, mayBlock)){
+				return true;
+			}
+			if(!mayBlock){
+				// compressing it is worth the trip, rather than sending it as it is
+				return false;
+			}
+		}
+		return sendFile(ctx, info, request, contentType, mayBlock);
 	}
 	
 	
 
-	private void sendFile(ChannelHandlerContext ctx, File file, FullHttpRequest request) throws IOException {
-		RandomAccessFile randomAccessFile = null;
+	/**
+	 * Sends the whole file, or with a satisfiable Range header the ranges it
+	 * asks for as a 206: one range as the body, several as a
+	 * multipart/byteranges body whose parts are written straight from the
+	 * file like a whole file. Ranges that add up to more than the file, or
+	 * more than {@link #MAX_RANGES} of them, get the whole file instead, so a
+	 * request cannot make the server send the same bytes many times.
+	 */
+	private boolean sendFile(ChannelHandlerContext ctx, FileInfo info, HttpRequest request, String contentType, boolean mayBlock) throws IOException {
+		long fileLength = info.length;
+		List<long[]> ranges = null;
+		if(request.headers().contains(Names.RANGE) && isRangeCurrent(request, info)){
+			ranges = parseRanges(request.headers().get(Names.RANGE), fileLength);
+			if(ranges != null && ranges.isEmpty()){
+				sendRangeNotSatisfiable(ctx, fileLength, request);
+				return true;
+			}
+		}
+		boolean partial = ranges != null;
+		if(!partial && cache != null && sendCached(ctx, info, request, contentType, mayBlock)){
+			return true;
+		}
+		if(!mayBlock){
+			return false;
+		}
+		if(!partial){
+			if(mappedFiles != null && (fileLength <= MAPPED_MAX_ZERO_COPY_SIZE || !isZeroCopy(ctx))
+					&& sendMapped(ctx, info, request, contentType)){
+				return true;
+			}
+			ranges = Collections.singletonList(new long[]{0, fileLength - 1});
+		}
+		RandomAccessFile[] parts = new RandomAccessFile[ranges.size()];
 		try{
-			randomAccessFile = new RandomAccessFile(file, "r");
+			for(int i = 0; i < parts.length; i++){
+				parts[i] = new RandomAccessFile(info.file, "r");
+			}
 		}catch(FileNotFoundException e){
+			for(RandomAccessFile part : parts){
+				if(part != null){
+					part.close();
+				}
+			}
 			sendError(ctx, HttpResponseStatus.NOT_FOUND);
-			return;
+			return true;
+		}
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+				partial ? HttpResponseStatus.PARTIAL_CONTENT : HttpResponseStatus.OK);
+		setValidators(response, info, contentType, null);
+		response.headers().set(Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+		ByteBuf[] partHeaders = null;
+		ByteBuf lastBoundary = null;
+		if(parts.length == 1){
+			long[] range = ranges.get(0);
+			if(partial){
+				response.headers().set(Names.CONTENT_RANGE, contentRange(range, fileLength));
+			}
+			response.headers().set(Names.CONTENT_TYPE, contentType);
+			HttpHeaders.setContentLength(response, range[1] - range[0] + 1);
+		}else{
+			String boundary = Long.toHexString(BOUNDARIES.nextLong());
+			partHeaders = new ByteBuf[parts.length];
+			long length = 0;
+			for(int i = 0; i < parts.length; i++){
+				long[] range = ranges.get(i);
+				partHeaders[i] = Unpooled.copiedBuffer("\r\n--" + boundary
+						+ "\r\nContent-Type: " + contentType
+						+ "\r\nContent-Range: " + contentRange(range, fileLength)
+						+ "\r\n\r\n", CharsetUtil.US_ASCII);
+				length += partHeaders[i].readableBytes() + range[1] - range[0] + 1;
+			}
+			lastBoundary = Unpooled.copiedBuffer("\r\n--" + boundary + "--\r\n", CharsetUtil.US_ASCII);
+			length += lastBoundary.readableBytes();
+			response.headers().set(Names.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+			HttpHeaders.setContentLength(response, length);
 		}
-		long fileLength = randomAccessFile.length();
-		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK);
-		HttpHeaders.setContentLength(response, fileLength);
-		SetContentTypeHeader(response, file);
 		if(HttpHeaders.isKeepAlive(request)){
 			response.headers().set(Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
 		}
 		ctx.write(response);
-		ChannelFuture sendFileFuture = ctx.write(new ChunkedFile(randomAccessFile,0,fileLength,8192), ctx.newProgressivePromise());
-		sendFileFuture.addListener(new ChannelProgressiveFutureListener() {
-			
-			@Override
-			public void operationComplete(ChannelProgressiveFuture future)
-					throws Exception {
-				System.out.println("Transfer Complete.");
+		final long startedAt = System.nanoTime();
+		for(int i = 0; i < parts.length; i++){
+			if(partHeaders != null){
+				ctx.write(partHeaders[i]);
 			}
-			
+			long[] range = ranges.get(i);
+			ChannelFuture sendFileFuture = writeRegion(ctx, parts[i], range[0], range[1] - range[0] + 1);
+			sendFileFuture.addListener(new ChannelProgressiveFutureListener() {
+				private long sent;
+
+				@Override
+				public void operationComplete(ChannelProgressiveFuture future)
+						throws Exception {
+					// the whole response is timed on its last content
+				}
+
+				@Override
+				public void operationProgressed(ChannelProgressiveFuture future,
+						long progress, long total) throws Exception {
+					BYTES_SENT.add(progress - sent);
+					sent = progress;
+					if(!LOG.sample()){
+						return;
+					}
+					if(total < 0){
+						LOG.log("Transfer progress : " + progress);
+					}else{
+						LOG.log("Transfer progress : " + progress + "/"
+								+ total);
+					}
+				}
+			});
+		}
+		if(lastBoundary != null){
+			ctx.write(lastBoundary);
+		}
+		ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+		lastContentFuture.addListener(new ChannelFutureListener() {
 			@Override
-			public void operationProgressed(ChannelProgressiveFuture future,
-					long progress, long total) throws Exception {
-				if(total < 0){
-					System.err.println("Transfer progress : " + progress);
-				}else{
-					System.err.println("Transfer progress : " + progress + "/"
-							+ total);
+			public void operationComplete(ChannelFuture future) throws Exception {
+				TRANSFER_NANOS.record(System.nanoTime() - startedAt);
+				if(LOG.sample()){
+					LOG.log("Transfer Complete.");
 				}
 			}
 		});
-		ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
 		if(!HttpHeaders.isKeepAlive(request)){
 			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
 		}
+		return true;
 	}
 
-	private void sendListing(ChannelHandlerContext ctx, File dir,  FullHttpRequest request) {
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK);
-		response.headers().set(Names.CONTENT_TYPE,"text/html;charset=UTF-8");
-		StringBuilder buf = new StringBuilder();
-		String dirPath = dir.getPath();
-		buf.append("<!DOCTYPE html>\r\n");
-		buf.append("<html><head><title>");
-		buf.append(dirPath);
-		buf.append("Ŀ¼");
-		buf.append("</title></head><body>\r\n");
-		buf.append("<ul><li>һ  <a href=\"../\">..</a></li>\r\n");
-		for(File f : dir.listFiles()){
-			if(f.isHidden() || !f.canRead()){
-				continue;
+	/**
+	 * Sends the whole file from {@link #cache} in one full response if it is
+	 * small enough to be cached, and unless {@code mayBlock} only if it is.
+	 */
+	private boolean sendCached(ChannelHandlerContext ctx, FileInfo info, HttpRequest request, String contentType, boolean mayBlock) throws IOException {
+		ByteBuf content;
+		try{
+			content = mayBlock ? cache.get(info.file, info.lastModified, info.length, null)
+					: cache.peek(info.file, info.lastModified, info.length, null);
+		}catch(FileNotFoundException e){
+			sendError(ctx, HttpResponseStatus.NOT_FOUND);
+			return true;
+		}
+		if(content == null){
+			return false;
+		}
+		sendContent(ctx, info, request, contentType, null, content);
+		return true;
+	}
+
+	/**
+	 * Sends the whole file compressed from {@link #compressedCache}, which
+	 * compresses it on the first request for this version of the file.
+	 */
+	private boolean sendCompressed(ChannelHandlerContext ctx, FileInfo info, HttpRequest request, String contentType, String encoding, boolean mayBlock) throws IOException {
+		ByteBuf content;
+		try{
+			content = mayBlock ? compressedCache.get(info.file, info.lastModified, info.length, encoding)
+					: compressedCache.peek(info.file, info.lastModified, info.length, encoding);
+		}catch(FileNotFoundException e){
+			sendError(ctx, HttpResponseStatus.NOT_FOUND);
+			return true;
+		}
+		if(content == null){
+			return false;
+		}
+		sendContent(ctx, info, request, contentType, encoding, content);
+		return true;
+	}
+
+	/**
+	 * Sends the whole file from {@link #mappedFiles} if it is of a size that
+	 * is mapped, and lets go of the mapping once it is written.
+	 */
+	private boolean sendMapped(ChannelHandlerContext ctx, FileInfo info, HttpRequest request, String contentType) throws IOException {
+		final HttpMappedFiles.MappedFile mapped;
+		try{
+			mapped = mappedFiles.get(info.file, info.lastModified, info.length);
+		}catch(FileNotFoundException e){
+			sendError(ctx, HttpResponseStatus.NOT_FOUND);
+			return true;
+		}
+		if(mapped == null){
+			return false;
+		}
+		sendContent(ctx, info, request, contentType, null, mapped.content()).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				mapped.release();
 			}
-			String name = f.getName();
-			if(!ALLOWED_FILE_NAME.matcher(name).matches()){
-				continue;
+		});
+		return true;
+	}
+
+	private static ChannelFuture sendContent(ChannelHandlerContext ctx, FileInfo info, HttpRequest request, String contentType, String encoding, ByteBuf content){
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK,content);
+		setValidators(response, info, contentType, encoding);
+		if(encoding == null){
+			response.headers().set(Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+		}else{
+			response.headers().set(Names.CONTENT_ENCODING, encoding);
+		}
+		response.headers().set(Names.CONTENT_TYPE, contentType);
+		HttpHeaders.setContentLength(response, content.readableBytes());
+		BYTES_SENT.add(content.readableBytes());
+		if(HttpHeaders.isKeepAlive(request)){
+			response.headers().set(Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+			return ctx.writeAndFlush(response);
+		}
+		return ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+	}
+
+	private static ChannelFuture writeRegion(ChannelHandlerContext ctx, RandomAccessFile file, long offset, long length) throws IOException {
+		if(isZeroCopy(ctx)){
+			return ctx.write(new DefaultFileRegion(file.getChannel(), offset, length), ctx.newProgressivePromise());
+		}
+		return ctx.write(new ChunkedFile(file, offset, length, 8192), ctx.newProgressivePromise());
+	}
+
+	private static String contentRange(long[] range, long fileLength){
+		return "bytes " + range[0] + "-" + range[1] + "/" + fileLength;
+	}
+
+	/**
+	 * Parses a {@code bytes=} Range header into inclusive {start, end} pairs
+	 * clipped to the file. Returns an empty list if no range is satisfiable,
+	 * and null if the header is malformed or asks for too much, in which
+	 * case the whole file is sent as if there were no Range header.
+	 */
+	private static List<long[]> parseRanges(String header, long fileLength){
+		if(!header.startsWith("bytes=")){
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if(specs.length > MAX_RANGES){
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<long[]>(specs.length);
+		long total = 0;
+		for(String spec : specs){
+			int dash = spec.indexOf('-');
+			if(dash < 0){
+				return null;
 			}
-			buf.append("<li><a href=\"");
-			buf.append(name);
-			buf.append("\">");
-			buf.append(name);
-			buf.append("</a></li>\r\n");
-		}
-		buf.append("</ul></body></html>");
-		HttpHeaders.setContentLength(response, buf.length());
-		ByteBuf buffer = Unpooled.copiedBuffer(buf,CharsetUtil.UTF_8);
-		response.content().writeBytes(buffer);
-		buffer.release();
-		ChannelFuture lastContentFuture = ctx.writeAndFlush(response);
-//		ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
-		if(!HttpHeaders.isKeepAlive(request)){
-			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start, end;
+			try{
+				if(first.isEmpty()){
+					long suffix = Long.parseLong(last);
+					if(suffix <= 0 || fileLength == 0){
+						continue;
+					}
+					start = Math.max(0, fileLength - suffix);
+					end = fileLength - 1;
+				}else{
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if(start < 0 || end < start){
+						return null;
+					}
+					if(start >= fileLength){
+						continue;
+					}
+					end = Math.min(end, fileLength - 1);
+				}
+			}catch(NumberFormatException e){
+				return null;
+			}
+			total += end - start + 1;
+			if(total > fileLength){
+				return null;
+			}
+			ranges.add(new long[]{start, end});
 		}
+		return ranges;
 	}
-	
-	private void sendHtml(ChannelHandlerContext ctx, File file,  FullHttpRequest request) throws IOException {
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK);
-		response.headers().set(Names.CONTENT_TYPE,"text/html;charset=ISO_8859_1");
-		StringBuilder buf = new StringBuilder();
-		RandomAccessFile aFile = new RandomAccessFile(file, "rw");
-		FileChannel inChannel = aFile.getChannel();
-		ByteBuffer temBuffer = ByteBuffer.allocate(1024);
-		while(inChannel.read(temBuffer) != -1){			
-			temBuffer.flip();
-			byte[] bytes = new byte[temBuffer.remaining()];
-			temBuffer.get(bytes);
-			String body = new String(bytes, "ISO_8859_1");
-			buf.append(body);
-			temBuffer.clear();
-		}
-		HttpHeaders.setContentLength(response, buf.length());
-		ByteBuf buffer = Unpooled.copiedBuffer(buf,CharsetUtil.ISO_8859_1);
-		response.content().writeBytes(buffer);
-		buffer.release();
-		ChannelFuture lastContentFuture = ctx.writeAndFlush(response);
-//		ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
-		if(!HttpHeaders.isKeepAlive(request)){
-			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+
+	/**
+	 * The ETag is strong and derived from the modification time and length,
+	 * so it changes whenever the file does without reading the file. Each
+	 * content coding is a representation of its own and gets its own tag.
+	 */
+	private static String etag(FileInfo info, String encoding){
+		return "\"" + Long.toHexString(info.lastModified) + "-" + Long.toHexString(info.length)
+				+ (encoding == null ? "" : "-" + encoding) + "\"";
+	}
+
+	private static void setValidators(HttpResponse response, FileInfo info, String contentType, String encoding){
+		response.headers().set(Names.ETAG, etag(info, encoding));
+		HttpHeaders.setDateHeader(response, Names.LAST_MODIFIED, new Date(info.lastModified));
+		if(isCompressible(contentType)){
+			response.headers().set(Names.VARY, Names.ACCEPT_ENCODING);
 		}
+	}
 
+	private static boolean isCompressible(String contentType){
+		return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+				|| contentType.startsWith("application/json") || contentType.contains("xml");
+	}
+
+	/**
+	 * The content coding to send the file with: gzip or deflate, whichever
+	 * Accept-Encoding prefers, gzip if it likes both the same, or null to
+	 * send the file as it is. Only text is compressed, and only files small
+	 * enough for {@link #compressedCache}.
+	 */
+	private String contentEncoding(HttpRequest request, FileInfo info, String contentType){
+		String accept = request.headers().get(Names.ACCEPT_ENCODING);
+		if(accept == null || compressedCache == null || !isCompressible(contentType)
+				|| !compressedCache.holds(info.length)){
+			return null;
+		}
+		float gzip = -1, deflate = -1, any = -1;
+		for(String coding : accept.split(",")){
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase(Locale.ENGLISH);
+			float q = 1;
+			for(int i = 1; i < params.length; i++){
+				String param = params[i].trim();
+				if(param.startsWith("q=")){
+					try{
+						q = Float.parseFloat(param.substring(2));
+					}catch(NumberFormatException e){
+						q = 0;
+					}
+				}
+			}
+			if(name.equals("gzip") || name.equals("x-gzip")){
+				gzip = q;
+			}else if(name.equals("deflate")){
+				deflate = q;
+			}else if(name.equals("*")){
+				any = q;
+			}
+		}
+		if(gzip < 0){
+			gzip = any;
+		}
+		if(deflate < 0){
+			deflate = any;
+		}
+		if(gzip > 0 && gzip >= deflate){
+			return HttpFileCache.GZIP;
+		}
+		return deflate > 0 ? HttpFileCache.DEFLATE : null;
+	}
+
+	/**
+	 * If-None-Match wins over If-Modified-Since when both are sent. Dates in
+	 * HTTP have whole seconds, so the modification time is compared in
+	 * seconds too.
+	 */
+	private static boolean isNotModified(HttpRequest request, FileInfo info, String encoding){
+		String ifNoneMatch = request.headers().get(Names.IF_NONE_MATCH);
+		if(ifNoneMatch != null){
+			String etag = etag(info, encoding);
+			for(String tag : ifNoneMatch.split(",")){
+				tag = tag.trim();
+				if(tag.startsWith("W/")){
+					tag = tag.substring(2);
+				}
+				if(tag.equals("*") || tag.equals(etag)){
+					return true;
+				}
+			}
+			return false;
+		}
+		Date since = HttpHeaders.getDateHeader(request, Names.IF_MODIFIED_SINCE, null);
+		return since != null && info.lastModified / 1000 <= since.getTime() / 1000;
+	}
+
+	/**
+	 * Whether the Range header applies: without If-Range it always does,
+	 * with it only if the file is still the one the client has part of.
+	 */
+	private static boolean isRangeCurrent(HttpRequest request, FileInfo info){
+		String ifRange = request.headers().get(Names.IF_RANGE);
+		if(ifRange == null){
+			return true;
+		}
+		if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+			return ifRange.equals(etag(info, null));
+		}
+		Date date = HttpHeaders.getDateHeader(request, Names.IF_RANGE, null);
+		return date != null && date.getTime() / 1000 == info.lastModified / 1000;
+	}
+
+	private static void sendNotModified(ChannelHandlerContext ctx, FileInfo info, HttpRequest request, String contentType, String encoding){
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.NOT_MODIFIED);
+		setValidators(response, info, contentType, encoding);
+		sendFull(ctx, response, request);
+	}
+
+	private static void sendRangeNotSatisfiable(ChannelHandlerContext ctx, long fileLength, HttpRequest request){
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+		response.headers().set(Names.CONTENT_RANGE, "bytes */" + fileLength);
+		HttpHeaders.setContentLength(response, 0);
+		sendFull(ctx, response, request);
+	}
+
+	private static void sendFull(ChannelHandlerContext ctx, FullHttpResponse response, HttpRequest request){
+		if(HttpHeaders.isKeepAlive(request)){
+			response.headers().set(Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+			ctx.writeAndFlush(response);
+		}else{
+			ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+
+	/**
+	 * A {@link DefaultFileRegion} lets the kernel move the file to the socket
+	 * (sendfile) without copying it through the JVM. That only works when no
+	 * handler has to see the bytes: TLS must encrypt them and a content
+	 * encoder must compress them, and both only take buffers, so they get a
+	 * {@link ChunkedFile} instead.
+	 */
+	private static boolean isZeroCopy(ChannelHandlerContext ctx){
+		return ctx.pipeline().get(SslHandler.class) == null
+				&& ctx.pipeline().get(HttpContentEncoder.class) == null;
+	}
+
+	/**
+	 * Sends the listing the query asks for: a listing kept in the index as a
+	 * whole, or else one streamed as it is read by {@link #pumpListing}.
+	 * Only listings without a query are kept, and only small ones.
+	 */
+	private boolean sendListing(ChannelHandlerContext ctx, File dir, HttpRequest request, String query, boolean mayBlock) {
+		boolean whole = query.isEmpty() && index != null;
+		ByteBuf content = whole ? index.listing(dir) : null;
+		if(content != null){
+			FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,HttpResponseStatus.OK,content);
+			response.headers().set(Names.CONTENT_TYPE,"text/html;charset=UTF-8");
+			HttpHeaders.setContentLength(response, content.readableBytes());
+			sendFull(ctx, response, request);
+			return true;
+		}
+		if(!mayBlock){
+			return false;
+		}
+		HttpDirectoryListing listing;
+		try{
+			listing = HttpDirectoryListing.create(dir, new QueryStringDecoder(request.getUri()).parameters());
+		}catch(IllegalArgumentException e){
+			sendError(ctx, HttpResponseStatus.BAD_REQUEST);
+			return true;
+		}
+		long generation = whole ? index.generation() : 0;
+		try{
+			listing.open();
+		}catch(IOException e){
+			sendError(ctx, HttpResponseStatus.NOT_FOUND);
+			return true;
+		}
+		if(whole){
+			listing.copyUpTo(LISTING_CACHE_MAX_SIZE);
+		}
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.headers().set(Names.CONTENT_TYPE, listing.contentType());
+		// HTTP/1.0 knows no chunks: the end of the connection ends the body
+		boolean keepAlive = HttpHeaders.isKeepAlive(request) && request.getProtocolVersion() != HttpVersion.HTTP_1_0;
+		if(request.getProtocolVersion() != HttpVersion.HTTP_1_0){
+			HttpHeaders.setTransferEncodingChunked(response);
+		}
+		response.headers().set(Names.CONNECTION, keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+		ctx.write(response);
+		streaming = new Listing(listing, dir, generation, whole, keepAlive);
+		return true;
+	}
+
+	/** A listing on its way, with what is needed to finish it. */
+	private static final class Listing {
+		final HttpDirectoryListing input;
+		final File dir;
+		final long generation;
+		final boolean keep;
+		final boolean keepAlive;
+
+		Listing(HttpDirectoryListing input, File dir, long generation, boolean keep, boolean keepAlive) {
+			this.input = input;
+			this.dir = dir;
+			this.generation = generation;
+			this.keep = keep;
+			this.keepAlive = keepAlive;
+		}
+	}
+
+	/**
+	 * Writes {@link #streaming} a chunk at a time: the next chunk is read on
+	 * the I/O executor once the last one is written, so a listing holds one
+	 * chunk in memory however large the directory and however slow the
+	 * client. The connection is closed if reading the directory fails after
+	 * the headers went out.
+	 */
+	private void pumpListing(final ChannelHandlerContext ctx){
+		final Listing listing = streaming;
+		if(!ctx.channel().isActive()){
+			endListing(ctx, listing);
+			return;
+		}
+		Runnable read = new Runnable() {
+			@Override
+			public void run() {
+				ByteBuf chunk = null;
+				Exception failure = null;
+				try{
+					chunk = listing.input.readChunk(ctx);
+				}catch(Exception e){
+					failure = e;
+				}
+				final ByteBuf done = chunk;
+				final Exception failed = failure;
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						if(failed != null){
+							// the headers are out, so the listing can only be cut short
+							if(LOG.sample()){
+								LOG.log("Listing failed : " + failed);
+							}
+							abortListing(ctx, listing);
+							return;
+						}
+						ChannelFuture future = ctx.writeAndFlush(new DefaultHttpContent(done));
+						if(listing.input.isEndOfInput()){
+							future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+							if(!listing.keepAlive){
+								future.addListener(ChannelFutureListener.CLOSE);
+							}
+							endListing(ctx, listing);
+							return;
+						}
+						future.addListener(new ChannelFutureListener() {
+							@Override
+							public void operationComplete(ChannelFuture future) throws Exception {
+								pumpListing(ctx);
+							}
+						});
+					}
+				});
+			}
+		};
+		if(ioExecutor == null){
+			read.run();
+			return;
+		}
+		try{
+			ioExecutor.execute(read);
+			IO_TASKS.increment();
+		}catch(RejectedExecutionException e){
+			IO_REJECTED.increment();
+			abortListing(ctx, listing);
+		}
+	}
+
+	/**
+	 * Gives up on a listing whose headers are out. Its body can only be cut
+	 * short, so the connection is closed and the requests pipelined behind
+	 * it are not answered.
+	 */
+	private void abortListing(ChannelHandlerContext ctx, Listing listing){
+		waiting.clear();
+		ctx.close();
+		endListing(ctx, listing);
+	}
+
+	/**
+	 * Keeps a small finished listing in the index, closes the directory and
+	 * goes on with the next request.
+	 */
+	private void endListing(ChannelHandlerContext ctx, Listing listing){
+		ByteBuf whole = listing.keep ? listing.input.takeCopy() : null;
+		if(whole != null){
+			index.putListing(listing.dir, whole, listing.generation).release();
+		}
+		try{
+			listing.input.close();
+		}catch(IOException e){
+			// nothing left to read from it
+		}
+		streaming = null;
+		busy = false;
+		next(ctx);
 	}
 	
 	private void sendRedirect(ChannelHandlerContext ctx, String newUri) {
@@ -201,6 +1214,14 @@ public class HttpFileServerHandler extends SimpleChannelInboundHandler<FullHttpR
 		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);			
 	}
 	
+	/**
+	 * The URI without its query, which names no part of the file.
+	 */
+	private static String uriPath(String uri) {
+		int queryStart = uri.indexOf('?');
+		return queryStart < 0 ? uri : uri.substring(0, queryStart);
+	}
+
 	private String sanitizeUri(String uri) {
 		try{
 			uri = URLDecoder.decode(uri, "UTF-8");
@@ -225,11 +1246,6 @@ public class HttpFileServerHandler extends SimpleChannelInboundHandler<FullHttpR
 		return System.getProperty("user.dir") + File.separator + uri;
 	}
 
-	private static void SetContentTypeHeader(HttpResponse response, File file){
-		MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
-		response.headers().set(Names.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
-	}
-	
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause){
 		cause.printStackTrace();
@@ -0,0 +1,186 @@
+package com.taobao.netty.http.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.StripedCounter;
+
+/**
+ * Medium sized files mapped into memory once and written from the mapping
+ * by every request for them, instead of each request opening and reading
+ * the file again. Files too small for this belong in a
+ * {@link HttpFileCache}, files too large are better sent with sendfile.
+ *
+ * Mappings are shared and reference counted: the table holds one
+ * reference, and every request holds one from
+ * {@link #get(File, long, long)} until its response is written. A mapping
+ * leaves the table when the file's modification time or length changes,
+ * or when the least recently used mappings make room for a new one within
+ * {@code capacity} mapped bytes; it is unmapped once the last request
+ * using it lets go. Requests still
+ * writing an evicted mapping can hold the process above the limit for as
+ * long as they take. A mapped file must be replaced rather than truncated
+ * in place: reading a mapping past the end of its file faults.
+ */
+public final class HttpMappedFiles {
+
+	private final long capacity;
+	private final long minFileSize;
+	private final long maxFileSize;
+	private final LinkedHashMap<String, MappedFile> files = new LinkedHashMap<String, MappedFile>(
+			16, 0.75f, true);
+	private long mapped;
+
+	private final StripedCounter hits;
+	private final StripedCounter misses;
+	private final StripedCounter evictions;
+
+	/**
+	 * A file mapped read only. Release it once the buffers from
+	 * {@link #content()} are no longer used.
+	 */
+	public static final class MappedFile extends AbstractReferenceCounted {
+		private final MappedByteBuffer buffer;
+		final long lastModified;
+		final long length;
+
+		MappedFile(MappedByteBuffer buffer, long lastModified, long length) {
+			this.buffer = buffer;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		/**
+		 * A view of the whole file with its own indexes. It does not own the
+		 * mapping, so releasing it leaves the mapping alone.
+		 */
+		public ByteBuf content() {
+			return Unpooled.wrappedBuffer(buffer.duplicate());
+		}
+
+		@Override
+		protected void deallocate() {
+			// unmaps now rather than when the buffer happens to be collected
+			PlatformDependent.freeDirectBuffer(buffer);
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            bytes the mappings in the table may add up to
+	 * @param minFileSize
+	 *            files smaller than this are not mapped
+	 * @param maxFileSize
+	 *            files larger than this are not mapped
+	 * @param metrics
+	 *            where hits, misses, evictions and the mapped bytes are
+	 *            published, as {@code http_mapped_*}
+	 */
+	public HttpMappedFiles(long capacity, long minFileSize, long maxFileSize,
+			Metrics metrics) {
+		if (maxFileSize > capacity || maxFileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("maxFileSize: " + maxFileSize
+					+ " (expected: <= capacity " + capacity
+					+ " and <= Integer.MAX_VALUE)");
+		}
+		this.capacity = capacity;
+		this.minFileSize = minFileSize;
+		this.maxFileSize = maxFileSize;
+		hits = metrics.counter("http_mapped_hits");
+		misses = metrics.counter("http_mapped_misses");
+		evictions = metrics.counter("http_mapped_evictions");
+		metrics.gauge("http_mapped_bytes", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return mappedBytes();
+			}
+		});
+	}
+
+	/**
+	 * Returns the file mapped and retained for the caller, or null if its
+	 * size is outside the range this maps. The modification time and length
+	 * are the caller's view of the file, as for {@link HttpFileCache}.
+	 */
+	public MappedFile get(File file, long lastModified, long length)
+			throws IOException {
+		if (length < minFileSize || length > maxFileSize) {
+			return null;
+		}
+		String key = file.getPath();
+		synchronized (this) {
+			MappedFile current = files.get(key);
+			if (current != null) {
+				if (current.lastModified == lastModified
+						&& current.length == length) {
+					hits.increment();
+					return (MappedFile) current.retain();
+				}
+				files.remove(key);
+				drop(current);
+			}
+		}
+		misses.increment();
+		MappedFile created = new MappedFile(map(file, length), lastModified,
+				length);
+		created.retain();
+		synchronized (this) {
+			MappedFile old = files.put(key, created);
+			if (old != null) {
+				drop(old);
+			}
+			mapped += length;
+			Iterator<MappedFile> eldest = files.values().iterator();
+			while (mapped > capacity && eldest.hasNext()) {
+				MappedFile evicted = eldest.next();
+				eldest.remove();
+				drop(evicted);
+				evictions.increment();
+			}
+		}
+		return created;
+	}
+
+	public synchronized long mappedBytes() {
+		return mapped;
+	}
+
+	/**
+	 * Drops every mapping from the table, such as when the server stops.
+	 */
+	public synchronized void clear() {
+		for (Map.Entry<String, MappedFile> entry : files.entrySet()) {
+			drop(entry.getValue());
+		}
+		files.clear();
+	}
+
+	private void drop(MappedFile file) {
+		mapped -= file.length;
+		file.release();
+	}
+
+	private static MappedByteBuffer map(File file, long length)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+	}
+}
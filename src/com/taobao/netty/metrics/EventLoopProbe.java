@@ -0,0 +1,55 @@
+package com.taobao.netty.metrics;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long event loops are kept from their channels. Every loop of
+ * a group runs a small task once per period and records how late it ran,
+ * which is how long whatever ran before it held the loop: a handler that
+ * waits for the disk or computes for long shows up here although nothing
+ * times it, and so does every other channel of the loop waiting meanwhile.
+ */
+public final class EventLoopProbe implements Runnable {
+
+	private final EventExecutor loop;
+	private final Histogram delays;
+	private final long periodNanos;
+	private long due;
+
+	private EventLoopProbe(EventExecutor loop, Histogram delays,
+			long periodNanos) {
+		this.loop = loop;
+		this.delays = delays;
+		this.periodNanos = periodNanos;
+	}
+
+	/**
+	 * Records the delays of the loops of {@code group} in nanoseconds until
+	 * the group shuts down.
+	 */
+	public static void watch(EventExecutorGroup group, Histogram delays,
+			long period, TimeUnit unit) {
+		for (EventExecutor loop : group.<EventExecutor> children()) {
+			new EventLoopProbe(loop, delays, unit.toNanos(period)).schedule();
+		}
+	}
+
+	@Override
+	public void run() {
+		delays.record(System.nanoTime() - due);
+		schedule();
+	}
+
+	private void schedule() {
+		due = System.nanoTime() + periodNanos;
+		try {
+			loop.schedule(this, periodNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.taobao.netty.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of values that are not negative, such as latencies in
+ * nanoseconds or sizes in bytes. Values are counted in buckets that double
+ * in width every 8 buckets, so every power of two is split in 8 and a
+ * percentile is within 1/8 of the true value, whatever the range.
+ *
+ * Recording increments one bucket and two {@link StripedCounter}s and only
+ * touches the maximum when it grows, so recording threads never wait for
+ * each other. Reading while others record gives a view that may be a few
+ * values behind.
+ */
+public final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long sum() {
+		return sum.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * The value below which the fraction {@code quantile} of the recorded
+	 * values lie, as the upper end of the bucket it falls in; 0 if nothing
+	 * was recorded.
+	 */
+	public long percentile(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Values below 8 get a bucket each. Above, the bucket is given by the
+	 * position of the highest bit and the 3 bits after it.
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return (exponent - SUB_BUCKET_BITS + 1 << SUB_BUCKET_BITS)
+				+ (int) (value >>> exponent - SUB_BUCKET_BITS & SUB_BUCKETS - 1);
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long lower = (long) (SUB_BUCKETS + (bucket & SUB_BUCKETS - 1)) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
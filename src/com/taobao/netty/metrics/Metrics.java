@@ -0,0 +1,249 @@
+package com.taobao.netty.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, histograms and gauges, readable over JMX through
+ * {@link #registerMBean(String)} and as text through {@link #toText()},
+ * which {@link MetricsHandler} serves at {@code /metrics}.
+ *
+ * Names follow the Prometheus text format: a base name, optionally followed
+ * by labels, such as {@code protocol_frames_in{type="LOGIN_REQ"}}; see
+ * {@link #name(String, String, String)}. Code on hot paths looks its metrics
+ * up once and keeps them in fields; the lookup itself is not meant to be
+ * cheap.
+ */
+public final class Metrics {
+
+	/** The metrics of the examples in this tree. */
+	public static final Metrics DEFAULT = new Metrics();
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/** A value computed when it is read, such as the size of a queue. */
+	public interface Gauge {
+		long value();
+	}
+
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+	/**
+	 * Returns the counter with this name, created on first use.
+	 */
+	public StripedCounter counter(String name) {
+		return get(name, StripedCounter.class, new StripedCounter());
+	}
+
+	/**
+	 * Returns the histogram with this name, created on first use.
+	 */
+	public Histogram histogram(String name) {
+		return get(name, Histogram.class, new Histogram());
+	}
+
+	/**
+	 * Adds a gauge, replacing any gauge of the same name.
+	 */
+	public void gauge(String name, Gauge gauge) {
+		Object old = metrics.put(name, gauge);
+		if (old != null && !(old instanceof Gauge)) {
+			metrics.put(name, old);
+			throw new IllegalArgumentException(name + " is not a gauge");
+		}
+	}
+
+	/**
+	 * Returns {@code base{label="value"}}.
+	 */
+	public static String name(String base, String label, String value) {
+		return base + '{' + label + "=\"" + value + "\"}";
+	}
+
+	private <T> T get(String name, Class<T> type, T created) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			metric = metrics.putIfAbsent(name, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+		if (!type.isInstance(metric)) {
+			throw new IllegalArgumentException(name + " is not a "
+					+ type.getSimpleName());
+		}
+		return type.cast(metric);
+	}
+
+	/**
+	 * All metrics in the Prometheus text format. A histogram is written as a
+	 * summary: its count, sum and max, and percentiles labelled with their
+	 * quantile.
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if (metric instanceof Histogram) {
+				Histogram histogram = (Histogram) metric;
+				for (double quantile : QUANTILES) {
+					line(text, withLabel(name, "quantile", quantile),
+							histogram.percentile(quantile));
+				}
+				line(text, suffixed(name, "_count"), histogram.count());
+				line(text, suffixed(name, "_sum"), histogram.sum());
+				line(text, suffixed(name, "_max"), histogram.max());
+			} else {
+				line(text, name, value(metric));
+			}
+		}
+		return text.toString();
+	}
+
+	private static void line(StringBuilder text, String name, long value) {
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static long value(Object metric) {
+		if (metric instanceof StripedCounter) {
+			return ((StripedCounter) metric).get();
+		}
+		return ((Gauge) metric).value();
+	}
+
+	private static String suffixed(String name, String suffix) {
+		int labels = name.indexOf('{');
+		return labels < 0 ? name + suffix : name.substring(0, labels)
+				+ suffix + name.substring(labels);
+	}
+
+	private static String withLabel(String name, String label, double value) {
+		String pair = label + "=\"" + value + '"';
+		int end = name.lastIndexOf('}');
+		return end < 0 ? name + '{' + pair + '}' : name.substring(0, end)
+				+ ',' + pair + '}';
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server as
+	 * {@code com.taobao.netty:type=Metrics,name=<name>}. Every metric is a
+	 * read only attribute named like in {@link #toText()}; a histogram
+	 * appears as its count, mean, max and percentiles. Registering the same
+	 * name again does nothing.
+	 */
+	public void registerMBean(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new MetricsMBean(),
+					new ObjectName("com.taobao.netty:type=Metrics,name=" + name));
+		} catch (InstanceAlreadyExistsException e) {
+			// registered before
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute)
+				throws AttributeNotFoundException {
+			Object metric = metrics.get(attribute);
+			if (metric != null && !(metric instanceof Histogram)) {
+				return value(metric);
+			}
+			int dot = attribute.lastIndexOf('.');
+			if (dot > 0) {
+				metric = metrics.get(attribute.substring(0, dot));
+				if (metric instanceof Histogram) {
+					Histogram histogram = (Histogram) metric;
+					String part = attribute.substring(dot + 1);
+					if (part.equals("count")) {
+						return histogram.count();
+					} else if (part.equals("mean")) {
+						return (long) histogram.mean();
+					} else if (part.equals("max")) {
+						return histogram.max();
+					} else if (part.startsWith("p")) {
+						try {
+							return histogram.percentile(Double
+									.parseDouble("0." + part.substring(1)));
+						} catch (NumberFormatException e) {
+							// fall through
+						}
+					}
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					// left out, as the interface asks
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+				if (entry.getValue() instanceof Histogram) {
+					for (String part : new String[] { "count", "mean", "max",
+							"p5", "p9", "p99", "p999" }) {
+						attributes.add(attribute(entry.getKey() + '.' + part));
+					}
+				} else {
+					attributes.add(attribute(entry.getKey()));
+				}
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Netty metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes
+							.size()]), null, null, null);
+		}
+
+		private MBeanAttributeInfo attribute(String name) {
+			return new MBeanAttributeInfo(name, "long", name, true, false,
+					false);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute)
+				throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName()
+					+ " is read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params,
+				String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.taobao.netty.metrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders.Names;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Answers {@code GET /metrics} with {@link Metrics#toText()} and passes
+ * every other request on, so it can sit in front of any HTTP handler,
+ * whether requests are aggregated into {@link FullHttpRequest}s or not, or
+ * serve a port of its own through
+ * {@link #listen(EventLoopGroup, String, int, Metrics)}. It answers right
+ * away, so a client that pipelines a metrics request behind others may get
+ * its answer first: in front of a handler that answers some requests later,
+ * such as the file server's, serve a port of its own instead.
+ */
+public class MetricsHandler extends ChannelHandlerAdapter {
+
+	public static final String PATH = "/metrics";
+
+	private final Metrics metrics;
+	/** Whether the body of a request answered here is still coming. */
+	private boolean discarding;
+
+	public MetricsHandler(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts an HTTP server that serves only {@code /metrics}.
+	 */
+	public static ChannelFuture listen(EventLoopGroup group, String host,
+			int port, final Metrics metrics) {
+		ServerBootstrap b = new ServerBootstrap();
+		b.group(group).channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch)
+							throws Exception {
+						ch.pipeline().addLast("http-codec", new HttpServerCodec());
+						ch.pipeline().addLast("http-aggregator",
+								new HttpObjectAggregator(65536));
+						ch.pipeline().addLast("metrics", new MetricsHandler(metrics));
+						ch.pipeline().addLast("not-found", new ChannelHandlerAdapter() {
+							@Override
+							public void channelRead(ChannelHandlerContext ctx,
+									Object msg) {
+								ReferenceCountUtil.release(msg);
+								respond(ctx, HttpResponseStatus.NOT_FOUND, "",
+										false);
+							}
+						});
+					}
+				});
+		return b.bind(host, port);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		if (discarding && msg instanceof HttpContent) {
+			discarding = !(msg instanceof LastHttpContent);
+			ReferenceCountUtil.release(msg);
+			return;
+		}
+		if (!(msg instanceof HttpRequest)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		HttpRequest request = (HttpRequest) msg;
+		String uri = request.getUri();
+		int query = uri.indexOf('?');
+		if (!PATH.equals(query < 0 ? uri : uri.substring(0, query))) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		boolean keepAlive = HttpHeaders.isKeepAlive(request);
+		HttpMethod method = request.getMethod();
+		discarding = !(msg instanceof LastHttpContent);
+		ReferenceCountUtil.release(msg);
+		if (method != HttpMethod.GET) {
+			respond(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "", keepAlive);
+		} else {
+			respond(ctx, HttpResponseStatus.OK, metrics.toText(), keepAlive);
+		}
+	}
+
+	private static void respond(ChannelHandlerContext ctx,
+			HttpResponseStatus status, String body, boolean keepAlive) {
+		ByteBuf content = Unpooled.copiedBuffer(body, CharsetUtil.UTF_8);
+		FullHttpResponse response = new DefaultFullHttpResponse(
+				HttpVersion.HTTP_1_1, status, content);
+		response.headers().set(Names.CONTENT_TYPE,
+				"text/plain; version=0.0.4; charset=UTF-8");
+		HttpHeaders.setContentLength(response, content.readableBytes());
+		if (keepAlive) {
+			response.headers().set(Names.CONNECTION,
+					HttpHeaders.Values.KEEP_ALIVE);
+			ctx.writeAndFlush(response);
+		} else {
+			ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+}
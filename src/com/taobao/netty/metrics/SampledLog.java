@@ -0,0 +1,99 @@
+package com.taobao.netty.metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Console logging for hot paths. Each log lets through at most
+ * {@code perSecond} lines a second and counts the rest, and the lines that
+ * pass are written to {@code System.out} by a single background thread, so
+ * a handler never waits for the console or for another thread printing.
+ * The next line that passes says how many were dropped before it.
+ *
+ * Callers ask {@link #sample()} first, so lines that would be dropped are
+ * never built:
+ *
+ * <pre>
+ * if (LOG.sample()) {
+ * 	LOG.log(&quot;The login response is : &quot; + loginResp);
+ * }
+ * </pre>
+ */
+public final class SampledLog {
+
+	private static final BlockingQueue<String> LINES = new ArrayBlockingQueue<String>(
+			4096);
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						System.out.println(LINES.take());
+					}
+				} catch (InterruptedException e) {
+					// exit
+				}
+			}
+		}, "sampled-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				String line;
+				while ((line = LINES.poll()) != null) {
+					System.out.println(line);
+				}
+			}
+		}, "sampled-log-flush"));
+	}
+
+	private final int perSecond;
+	private final AtomicLong second = new AtomicLong();
+	private final AtomicInteger taken = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public SampledLog(int perSecond) {
+		this.perSecond = perSecond;
+	}
+
+	/**
+	 * Whether the caller may log a line now. Counts the line as dropped if
+	 * not.
+	 */
+	public boolean sample() {
+		long now = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+		long current = second.get();
+		if (now != current && second.compareAndSet(current, now)) {
+			taken.set(0);
+		}
+		if (taken.incrementAndGet() <= perSecond) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Queues a line that {@link #sample()} let through. Drops it if the
+	 * writer is too far behind.
+	 */
+	public void log(String line) {
+		long missed = dropped.getAndSet(0);
+		if (missed > 0) {
+			line = line + " (" + missed + " similar lines dropped)";
+		}
+		if (!LINES.offer(line)) {
+			dropped.addAndGet(missed + 1);
+		}
+	}
+
+	public long dropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,59 @@
+package com.taobao.netty.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated from many threads at once, such as the frames read by
+ * all event loops. Each thread adds to one of several cells, picked by its
+ * id and a cache line apart from the others, so threads on different cores
+ * do not fight over one value; reading sums the cells. Java 8's LongAdder
+ * does the same, but this tree still builds for Java 7.
+ */
+public final class StripedCounter {
+
+	/** Longs per 64 byte cache line. */
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+			* PADDING);
+
+	public void add(long delta) {
+		cells.addAndGet(cell(), delta);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	/**
+	 * The sum of all updates. Updates made while it runs may or may not be
+	 * included.
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int cell() {
+		return ((int) Thread.currentThread().getId() & STRIPES - 1) * PADDING;
+	}
+
+	/** Twice the processors, rounded up to a power of two. */
+	private static int stripes() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		return Integer.highestOneBit(Math.max(1, processors * 2 - 1)) << 1;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+}
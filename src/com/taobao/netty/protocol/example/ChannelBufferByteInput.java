@@ -25,12 +25,20 @@ import java.io.IOException;
  */
 class ChannelBufferByteInput implements ByteInput {
 
-    private final ByteBuf buffer;
+    private ByteBuf buffer;
 
     public ChannelBufferByteInput(ByteBuf buffer) {
         this.buffer = buffer;
     }
 
+    /**
+     * Points this instance at another {@link ByteBuf}, so one wrapper can be
+     * reused for every object of a channel
+     */
+    void setBuffer(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
     @Override
     public void close() throws IOException {
         // nothing to do
@@ -27,7 +27,7 @@ import java.io.IOException;
  */
 class ChannelBufferByteOutput implements ByteOutput {
 
-    private final ByteBuf buffer;
+    private ByteBuf buffer;
 
     /**
      * Create a new instance which use the given {@link ByteBuf}
@@ -36,6 +36,14 @@ class ChannelBufferByteOutput implements ByteOutput {
         this.buffer = buffer;
     }
 
+    /**
+     * Points this instance at another {@link ByteBuf}, so one wrapper can be
+     * reused for every object of a channel
+     */
+    void setBuffer(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
     @Override
     public void close() throws IOException {
         // Nothing to do
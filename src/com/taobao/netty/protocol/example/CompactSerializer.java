@@ -0,0 +1,331 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Binary {@link Serializer} that writes a one byte type tag followed by the
+ * value, with no class descriptors. Tags are looked up in a table of
+ * registered types; the built in entries cover primitives wrappers,
+ * {@link String}, {@code byte[]}, {@link ArrayList} and {@link HashMap}. Values
+ * of any other type are written with {@link SessionJbossSerializer} behind a
+ * fallback tag. Types are matched exactly, so other lists and maps, such as a
+ * {@link java.util.LinkedHashMap} or an unmodifiable list, also take the
+ * fallback and arrive with their own type and order.
+ *
+ * Applications add their own types with {@link #register(int, Class, Codec)}
+ * using tags from {@link #FIRST_USER_TAG}; both peers must register the same
+ * table.
+ */
+public class CompactSerializer implements Serializer {
+
+	/**
+	 * Hand written codec for one registered type.
+	 */
+	public interface Codec<T> {
+
+		void write(CompactSerializer serializer, T value, ByteBuf out)
+				throws Exception;
+
+		T read(CompactSerializer serializer, ByteBuf in) throws Exception;
+	}
+
+	public static final int FIRST_USER_TAG = 32;
+	private static final int MAX_TAG = 127;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_BOOLEAN = 1;
+	private static final int TAG_BYTE = 2;
+	private static final int TAG_SHORT = 3;
+	private static final int TAG_CHAR = 4;
+	private static final int TAG_INT = 5;
+	private static final int TAG_LONG = 6;
+	private static final int TAG_FLOAT = 7;
+	private static final int TAG_DOUBLE = 8;
+	private static final int TAG_STRING = 9;
+	private static final int TAG_BYTES = 10;
+	private static final int TAG_LIST = 11;
+	private static final int TAG_MAP = 12;
+	private static final int TAG_FALLBACK = 31;
+
+	private static final ConcurrentMap<Class<?>, Integer> TAGS = new ConcurrentHashMap<Class<?>, Integer>();
+	private static final AtomicReferenceArray<Codec<?>> CODECS = new AtomicReferenceArray<Codec<?>>(
+			MAX_TAG + 1);
+
+	static {
+		define(TAG_BOOLEAN, Boolean.class, new Codec<Boolean>() {
+			public void write(CompactSerializer s, Boolean value, ByteBuf out) {
+				out.writeBoolean(value);
+			}
+
+			public Boolean read(CompactSerializer s, ByteBuf in) {
+				return in.readBoolean();
+			}
+		});
+		define(TAG_BYTE, Byte.class, new Codec<Byte>() {
+			public void write(CompactSerializer s, Byte value, ByteBuf out) {
+				out.writeByte(value);
+			}
+
+			public Byte read(CompactSerializer s, ByteBuf in) {
+				return in.readByte();
+			}
+		});
+		define(TAG_SHORT, Short.class, new Codec<Short>() {
+			public void write(CompactSerializer s, Short value, ByteBuf out) {
+				out.writeShort(value);
+			}
+
+			public Short read(CompactSerializer s, ByteBuf in) {
+				return in.readShort();
+			}
+		});
+		define(TAG_CHAR, Character.class, new Codec<Character>() {
+			public void write(CompactSerializer s, Character value,
+					ByteBuf out) {
+				out.writeChar(value);
+			}
+
+			public Character read(CompactSerializer s, ByteBuf in) {
+				return in.readChar();
+			}
+		});
+		define(TAG_INT, Integer.class, new Codec<Integer>() {
+			public void write(CompactSerializer s, Integer value, ByteBuf out) {
+				VarInts.writeVarInt(out, VarInts.zigZag(value.intValue()));
+			}
+
+			public Integer read(CompactSerializer s, ByteBuf in) {
+				return VarInts.unZigZag(VarInts.readVarInt(in));
+			}
+		});
+		define(TAG_LONG, Long.class, new Codec<Long>() {
+			public void write(CompactSerializer s, Long value, ByteBuf out) {
+				VarInts.writeVarLong(out, VarInts.zigZag(value.longValue()));
+			}
+
+			public Long read(CompactSerializer s, ByteBuf in) {
+				return VarInts.unZigZag(VarInts.readVarLong(in));
+			}
+		});
+		define(TAG_FLOAT, Float.class, new Codec<Float>() {
+			public void write(CompactSerializer s, Float value, ByteBuf out) {
+				out.writeFloat(value);
+			}
+
+			public Float read(CompactSerializer s, ByteBuf in) {
+				return in.readFloat();
+			}
+		});
+		define(TAG_DOUBLE, Double.class, new Codec<Double>() {
+			public void write(CompactSerializer s, Double value, ByteBuf out) {
+				out.writeDouble(value);
+			}
+
+			public Double read(CompactSerializer s, ByteBuf in) {
+				return in.readDouble();
+			}
+		});
+		define(TAG_STRING, String.class, new Codec<String>() {
+			public void write(CompactSerializer s, String value, ByteBuf out) {
+				writeString(value, out);
+			}
+
+			public String read(CompactSerializer s, ByteBuf in) {
+				return readString(in);
+			}
+		});
+		define(TAG_BYTES, byte[].class, new Codec<byte[]>() {
+			public void write(CompactSerializer s, byte[] value, ByteBuf out) {
+				VarInts.writeVarInt(out, value.length);
+				out.writeBytes(value);
+			}
+
+			public byte[] read(CompactSerializer s, ByteBuf in) {
+				byte[] value = new byte[VarInts.readVarInt(in)];
+				in.readBytes(value);
+				return value;
+			}
+		});
+		TAGS.put(ArrayList.class, TAG_LIST);
+		CODECS.set(TAG_LIST, new Codec<List<?>>() {
+			public void write(CompactSerializer s, List<?> value, ByteBuf out)
+					throws Exception {
+				VarInts.writeVarInt(out, value.size());
+				for (Object element : value) {
+					s.writeObject(element, out);
+				}
+			}
+
+			public List<?> read(CompactSerializer s, ByteBuf in)
+					throws Exception {
+				int size = VarInts.readVarInt(in);
+				List<Object> value = new ArrayList<Object>(Math.min(size,
+						in.readableBytes()));
+				for (int i = 0; i < size; i++) {
+					value.add(s.readObject(in));
+				}
+				return value;
+			}
+		});
+		TAGS.put(HashMap.class, TAG_MAP);
+		CODECS.set(TAG_MAP, new Codec<Map<?, ?>>() {
+			public void write(CompactSerializer s, Map<?, ?> value,
+					ByteBuf out) throws Exception {
+				VarInts.writeVarInt(out, value.size());
+				for (Map.Entry<?, ?> entry : value.entrySet()) {
+					s.writeObject(entry.getKey(), out);
+					s.writeObject(entry.getValue(), out);
+				}
+			}
+
+			public Map<?, ?> read(CompactSerializer s, ByteBuf in)
+					throws Exception {
+				int size = VarInts.readVarInt(in);
+				Map<Object, Object> value = new HashMap<Object, Object>(
+						Math.min(size, in.readableBytes()));
+				for (int i = 0; i < size; i++) {
+					value.put(s.readObject(in), s.readObject(in));
+				}
+				return value;
+			}
+		});
+	}
+
+	private SessionJbossSerializer fallback;
+
+	/**
+	 * Registers an application type. Must be called before the first channel
+	 * is opened, with the same arguments on both peers.
+	 */
+	public static <T> void register(int tag, Class<T> type, Codec<T> codec) {
+		if (tag < FIRST_USER_TAG || tag > MAX_TAG) {
+			throw new IllegalArgumentException("tag: " + tag
+					+ " (expected: " + FIRST_USER_TAG + "-" + MAX_TAG + ")");
+		}
+		define(tag, type, codec);
+	}
+
+	private static <T> void define(int tag, Class<T> type, Codec<T> codec) {
+		if (!CODECS.compareAndSet(tag, null, codec)) {
+			throw new IllegalStateException("tag " + tag
+					+ " is already registered");
+		}
+		TAGS.put(type, tag);
+	}
+
+	@Override
+	public byte id() {
+		return COMPACT;
+	}
+
+	@Override
+	public void serialize(Object obj, ByteBuf out) throws Exception {
+		writeObject(obj, out);
+	}
+
+	@Override
+	public Object deserialize(ByteBuf in) throws Exception {
+		return readObject(in);
+	}
+
+	@Override
+	public boolean takeDefinitions() {
+		return fallback != null && fallback.takeDefinitions();
+	}
+
+	@Override
+	public void dropDefinitions() {
+		if (fallback != null) {
+			fallback.dropDefinitions();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void writeObject(Object obj, ByteBuf out) throws Exception {
+		if (obj == null) {
+			out.writeByte(TAG_NULL);
+			return;
+		}
+		Integer tag = TAGS.get(obj.getClass());
+		if (tag == null) {
+			writeFallback(obj, out);
+			return;
+		}
+		out.writeByte(tag);
+		((Codec<Object>) CODECS.get(tag)).write(this, obj, out);
+	}
+
+	public Object readObject(ByteBuf in) throws Exception {
+		int tag = in.readByte();
+		if (tag == TAG_NULL) {
+			return null;
+		}
+		if (tag == TAG_FALLBACK) {
+			return readFallback(in);
+		}
+		Codec<?> codec = tag > 0 ? CODECS.get(tag) : null;
+		if (codec == null) {
+			throw new CorruptedFrameException("unknown type tag: " + tag);
+		}
+		return codec.read(this, in);
+	}
+
+	private void writeFallback(Object obj, ByteBuf out) throws Exception {
+		out.writeByte(TAG_FALLBACK);
+		int lengthPos = out.writerIndex();
+		out.writeInt(0);
+		fallback().serialize(obj, out);
+		out.setInt(lengthPos, out.writerIndex() - lengthPos - 4);
+	}
+
+	private Object readFallback(ByteBuf in) throws Exception {
+		int length = in.readInt();
+		Object obj = fallback().deserialize(in.slice(in.readerIndex(), length));
+		in.skipBytes(length);
+		return obj;
+	}
+
+	private SessionJbossSerializer fallback() throws IOException {
+		if (fallback == null) {
+			fallback = new SessionJbossSerializer();
+		}
+		return fallback;
+	}
+
+	static void writeString(String value, ByteBuf out) {
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			if (value.charAt(i) >= 0x80) {
+				byte[] bytes = value.getBytes(CharsetUtil.UTF_8);
+				VarInts.writeVarInt(out, bytes.length);
+				out.writeBytes(bytes);
+				return;
+			}
+		}
+		// ASCII only, one byte per char and no intermediate array
+		VarInts.writeVarInt(out, length);
+		out.ensureWritable(length);
+		for (int i = 0; i < length; i++) {
+			out.writeByte(value.charAt(i));
+		}
+	}
+
+	static String readString(ByteBuf in) {
+		int length = VarInts.readVarInt(in);
+		String value = in.toString(in.readerIndex(), length,
+				CharsetUtil.UTF_8);
+		in.skipBytes(length);
+		return value;
+	}
+}
@@ -0,0 +1,237 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.compression.CompressionException;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.Snappy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Frame payload compression for one session, plus the numbers needed to tell
+ * whether it pays off. Codec state is reused from frame to frame, so an
+ * instance must only be used from the channel's event loop.
+ */
+public final class Compression {
+
+	public static final byte NONE = 0;
+	public static final byte DEFLATE = 1;
+	public static final byte SNAPPY = 2;
+
+	/**
+	 * The bundled {@link Snappy} only handles 16 bit copy offsets, so larger
+	 * payloads are cut into blocks of this size, each preceded by its three byte
+	 * compressed length.
+	 */
+	private static final int SNAPPY_BLOCK = Short.MAX_VALUE;
+
+	private Deflater deflater;
+	private Inflater inflater;
+	private Snappy snappy;
+
+	private final AtomicLong compressedFrames = new AtomicLong();
+	private final AtomicLong bytesBeforeCompression = new AtomicLong();
+	private final AtomicLong bytesAfterCompression = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+	private final AtomicLong decompressedFrames = new AtomicLong();
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	static boolean isSupported(byte codec) {
+		return codec == DEFLATE || codec == SNAPPY;
+	}
+
+	/**
+	 * Compresses {@code length} bytes of {@code in} into {@code out}. Returns
+	 * false, leaving {@code out} as it was, if the result would not be
+	 * smaller.
+	 */
+	boolean compress(ByteBufAllocator alloc, byte codec, ByteBuf in,
+			int length, ByteBuf out) {
+		long start = System.nanoTime();
+		int outStart = out.writerIndex();
+		boolean smaller;
+		if (codec == SNAPPY) {
+			snappySplit(in, length, out);
+			smaller = out.writerIndex() - outStart < length;
+		} else if (codec == DEFLATE) {
+			smaller = deflate(alloc, in, length, out);
+		} else {
+			throw new CompressionException("unknown codec: " + codec);
+		}
+		compressNanos.addAndGet(System.nanoTime() - start);
+		if (!smaller) {
+			out.writerIndex(outStart);
+			return false;
+		}
+		int compressed = out.writerIndex() - outStart;
+		compressedFrames.incrementAndGet();
+		bytesBeforeCompression.addAndGet(length);
+		bytesAfterCompression.addAndGet(compressed);
+		return true;
+	}
+
+	void decompress(ByteBufAllocator alloc, byte codec, ByteBuf in,
+			int uncompressedLength, ByteBuf out) {
+		long start = System.nanoTime();
+		int outStart = out.writerIndex();
+		if (codec == SNAPPY) {
+			out.ensureWritable(uncompressedLength);
+			snappyJoin(in, out);
+		} else if (codec == DEFLATE) {
+			inflate(alloc, in, uncompressedLength, out);
+		} else {
+			throw new DecompressionException("unknown codec: " + codec);
+		}
+		if (out.writerIndex() - outStart != uncompressedLength) {
+			throw new DecompressionException("expected " + uncompressedLength
+					+ " bytes, got " + (out.writerIndex() - outStart));
+		}
+		decompressedFrames.incrementAndGet();
+		decompressNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	private void snappySplit(ByteBuf in, int length, ByteBuf out) {
+		if (snappy == null) {
+			snappy = new Snappy();
+		}
+		for (int offset = 0; offset < length; offset += SNAPPY_BLOCK) {
+			int blockLength = Math.min(SNAPPY_BLOCK, length - offset);
+			// a block never grows past 5/4 of its input, so three bytes
+			// always hold its length
+			int lengthPos = out.writerIndex();
+			out.writeMedium(0);
+			snappy.encode(in.slice(in.readerIndex() + offset, blockLength),
+					out, blockLength);
+			snappy.reset();
+			out.setMedium(lengthPos, out.writerIndex() - lengthPos - 3);
+		}
+	}
+
+	private void snappyJoin(ByteBuf in, ByteBuf out) {
+		if (snappy == null) {
+			snappy = new Snappy();
+		}
+		while (in.isReadable()) {
+			int blockLength = in.readUnsignedMedium();
+			snappy.decode(in.readSlice(blockLength), out);
+			snappy.reset();
+		}
+	}
+
+	private boolean deflate(ByteBufAllocator alloc, ByteBuf in, int length,
+			ByteBuf out) {
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		ByteBuf src = heap(alloc, in, length);
+		ByteBuf dst = alloc.heapBuffer(length);
+		try {
+			deflater.setInput(src.array(), src.arrayOffset() + src.readerIndex(),
+					length);
+			deflater.finish();
+			while (!deflater.finished() && dst.isWritable()) {
+				int n = deflater.deflate(dst.array(), dst.arrayOffset()
+						+ dst.writerIndex(), dst.writableBytes());
+				dst.writerIndex(dst.writerIndex() + n);
+			}
+			if (!deflater.finished()) {
+				// no smaller than the input
+				return false;
+			}
+			out.writeBytes(dst);
+			return dst.readableBytes() < length;
+		} finally {
+			deflater.reset();
+			dst.release();
+			if (src != in) {
+				src.release();
+			}
+		}
+	}
+
+	private void inflate(ByteBufAllocator alloc, ByteBuf in,
+			int uncompressedLength, ByteBuf out) {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		int length = in.readableBytes();
+		ByteBuf src = heap(alloc, in, length);
+		ByteBuf dst = alloc.heapBuffer(uncompressedLength);
+		try {
+			inflater.setInput(src.array(), src.arrayOffset() + src.readerIndex(),
+					length);
+			while (dst.isWritable() && !inflater.finished()) {
+				int n = inflater.inflate(dst.array(), dst.arrayOffset()
+						+ dst.writerIndex(), uncompressedLength
+						- dst.readableBytes());
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				dst.writerIndex(dst.writerIndex() + n);
+			}
+			out.writeBytes(dst);
+			in.skipBytes(length);
+		} catch (DataFormatException e) {
+			throw new DecompressionException(e);
+		} finally {
+			inflater.reset();
+			dst.release();
+			if (src != in) {
+				src.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns {@code in} if it is backed by an array, or a pooled heap copy of
+	 * its readable bytes the caller has to release.
+	 */
+	private static ByteBuf heap(ByteBufAllocator alloc, ByteBuf in, int length) {
+		if (in.hasArray()) {
+			return in;
+		}
+		ByteBuf copy = alloc.heapBuffer(length);
+		copy.writeBytes(in, in.readerIndex(), length);
+		return copy;
+	}
+
+	public long getCompressedFrames() {
+		return compressedFrames.get();
+	}
+
+	public long getDecompressedFrames() {
+		return decompressedFrames.get();
+	}
+
+	/**
+	 * Compressed size over original size of all compressed frames, 1.0 if
+	 * none were compressed.
+	 */
+	public double getRatio() {
+		long before = bytesBeforeCompression.get();
+		return before == 0 ? 1.0 : (double) bytesAfterCompression.get()
+				/ before;
+	}
+
+	public long getCompressMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(compressNanos.get());
+	}
+
+	public long getDecompressMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(decompressNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "Compression [compressedFrames=" + getCompressedFrames()
+				+ ", ratio=" + getRatio() + ", compressMillis="
+				+ getCompressMillis() + ", decompressedFrames="
+				+ getDecompressedFrames() + ", decompressMillis="
+				+ getDecompressMillis() + "]";
+	}
+}
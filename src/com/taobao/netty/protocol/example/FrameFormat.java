@@ -0,0 +1,90 @@
+package com.taobao.netty.protocol.example;
+
+/**
+ * Layout of the crcCode field that starts every frame:
+ *
+ * <pre>
+ * +--------+--------+---------+---------+
+ * |    magic 0xabef | version | options |
+ * +--------+--------+---------+---------+
+ * </pre>
+ *
+ * The options byte was always 0x01 before it carried anything, which is why
+ * the serializer id 1 stands for JBoss marshalling.
+ *
+ * The version selects the rest of the fixed header. Version 1 is the original
+ * layout of {@link NettyMessageEncoder#HEADER_LENGTH} bytes. Version 2 is
+ *
+ * <pre>
+ * crcCode | varint length | flags | [varint sessionID] | type | [priority] | [varint attachment count]
+ * </pre>
+ *
+ * where the bracketed fields are only present if their flag is set, and the
+ * body is left out entirely when there is none. A heartbeat takes 7 bytes
+ * instead of 26.
+ */
+final class FrameFormat {
+
+	static final int MAGIC = 0xabef;
+	static final int VERSION_1 = 0x01;
+	static final int VERSION_2 = 0x02;
+
+	/** Id of the {@link Serializer} that wrote attachment values and body. */
+	static final int SERIALIZER_MASK = 0x03;
+	/** Attachment keys are written through the session's {@link KeyDictionary}. */
+	static final int KEY_IDS = 0x04;
+	/**
+	 * The frame adds entries to session state, dictionary keys or serializer
+	 * tables, and must be decoded in order.
+	 */
+	static final int DEFINES = 0x08;
+	/**
+	 * Everything after the fixed header is compressed: one byte codec id, the
+	 * varint uncompressed length, then the compressed bytes.
+	 */
+	static final int COMPRESSED = 0x10;
+	/**
+	 * A varint request id follows the fixed header, before the attachments.
+	 */
+	static final int REQUEST_ID = 0x20;
+	/**
+	 * Version 2 only: the frame carries a piece of a larger frame, see
+	 * {@link PriorityWriteHandler}. After the length comes one byte with the
+	 * stream in the low four bits and {@link #LAST_FRAGMENT} set on the final
+	 * piece, then the bytes of the piece.
+	 */
+	static final int FRAGMENT = 0x40;
+	static final int LAST_FRAGMENT = 0x80;
+	static final int FRAGMENT_STREAM_MASK = 0x0f;
+
+	/** Version 2 flags: the session id is not 0. */
+	static final int HAS_SESSION_ID = 0x01;
+	/** Version 2 flags: the priority is not 0. */
+	static final int HAS_PRIORITY = 0x02;
+	/** Version 2 flags: there are attachments. */
+	static final int HAS_ATTACHMENTS = 0x04;
+
+	private FrameFormat() {
+	}
+
+	static int crcCode(int version, int options) {
+		return MAGIC << 16 | (version & 0xff) << 8 | (options & 0xff);
+	}
+
+	static int version(int crcCode) {
+		return crcCode >>> 8 & 0xff;
+	}
+
+	static int options(int crcCode) {
+		return crcCode & 0xff;
+	}
+
+	static boolean has(int crcCode, int option) {
+		return (crcCode & option) != 0;
+	}
+
+	static byte serializer(int crcCode) {
+		byte id = (byte) (crcCode & SERIALIZER_MASK);
+		return id == 0 ? Serializer.JBOSS : id;
+	}
+}
@@ -0,0 +1,172 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read access to one received frame of either header version. The fixed
+ * header is parsed up front; attachments and body are decoded when asked for.
+ * The view owns one reference to the frame, released through
+ * {@link NettyMessage#release()}.
+ */
+final class FrameView {
+
+	private final ByteBuf frame;
+	private final MarshallingDecoder decoder;
+	/** Peer's key dictionary, null if the session did not agree on one. */
+	private final KeyDictionary keys;
+	private final int crcCode;
+	private final int length;
+	/** Offset of the first field after the length. */
+	private final int fieldsOffset;
+	private final long sessionID;
+	private final byte type;
+	private final byte priority;
+	private final int attachmentCount;
+	private final long requestID;
+	/** Offset of the first attachment, where the payload starts. */
+	private final int payloadOffset;
+	/** Offset of the body length field, -1 until the attachments are walked. */
+	private int bodyOffset = -1;
+
+	FrameView(ByteBuf frame, MarshallingDecoder decoder, KeyDictionary keys) {
+		this.frame = frame;
+		this.decoder = decoder;
+		this.keys = keys;
+		ByteBuf in = frame.duplicate();
+		in.readerIndex(0);
+		crcCode = in.readInt();
+		if (FrameFormat.version(crcCode) == FrameFormat.VERSION_2) {
+			length = VarInts.readVarInt(in);
+			fieldsOffset = in.readerIndex();
+			int flags = in.readUnsignedByte();
+			sessionID = FrameFormat.has(flags, FrameFormat.HAS_SESSION_ID) ? VarInts
+					.readVarLong(in) : 0;
+			type = in.readByte();
+			priority = FrameFormat.has(flags, FrameFormat.HAS_PRIORITY) ? in
+					.readByte() : 0;
+			attachmentCount = FrameFormat.has(flags,
+					FrameFormat.HAS_ATTACHMENTS) ? VarInts.readVarInt(in) : 0;
+		} else {
+			length = in.readInt();
+			fieldsOffset = in.readerIndex();
+			sessionID = in.readLong();
+			type = in.readByte();
+			priority = in.readByte();
+			attachmentCount = in.readInt();
+		}
+		requestID = FrameFormat.has(crcCode, FrameFormat.REQUEST_ID) ? VarInts
+				.readVarLong(in) : 0;
+		payloadOffset = in.readerIndex();
+		if (FrameFormat.has(crcCode, FrameFormat.KEY_IDS) && keys == null) {
+			throw new CorruptedFrameException(
+					"key ids used without a negotiated dictionary");
+		}
+	}
+
+	ByteBuf frame() {
+		return frame;
+	}
+
+	int crcCode() {
+		return crcCode;
+	}
+
+	int length() {
+		return length;
+	}
+
+	long sessionID() {
+		return sessionID;
+	}
+
+	byte type() {
+		return type;
+	}
+
+	byte priority() {
+		return priority;
+	}
+
+	long requestID() {
+		return requestID;
+	}
+
+	int fieldsOffset() {
+		return fieldsOffset;
+	}
+
+	int payloadOffset() {
+		return payloadOffset;
+	}
+
+	Map<String, Object> attachment() {
+		ByteBuf in = frame.duplicate();
+		in.readerIndex(payloadOffset);
+		int size = attachmentCount;
+		Map<String, Object> attch = new HashMap<String, Object>(size);
+		try {
+			// the decoder belongs to the channel, lazy reads may come from
+			// any thread
+			synchronized (decoder) {
+				decoder.useSerializer(FrameFormat.serializer(crcCode));
+				for (int i = 0; i < size; i++) {
+					attch.put(readKey(in), decoder.decode(in));
+				}
+			}
+		} catch (Exception e) {
+			throw new DecoderException(e);
+		}
+		bodyOffset = in.readerIndex();
+		return attch;
+	}
+
+	Object body() {
+		ByteBuf in = frame.duplicate();
+		in.readerIndex(bodyOffset());
+		if (in.readableBytes() <= 4) {
+			return null;
+		}
+		try {
+			synchronized (decoder) {
+				decoder.useSerializer(FrameFormat.serializer(crcCode));
+				return decoder.decode(in);
+			}
+		} catch (Exception e) {
+			throw new DecoderException(e);
+		}
+	}
+
+	private String readKey(ByteBuf in) {
+		if (keys != null && FrameFormat.has(crcCode, FrameFormat.KEY_IDS)) {
+			return keys.readKey(in);
+		}
+		int keySize = in.readInt();
+		String key = in.toString(in.readerIndex(), keySize, CharsetUtil.UTF_8);
+		in.skipBytes(keySize);
+		return key;
+	}
+
+	private int bodyOffset() {
+		if (bodyOffset < 0) {
+			ByteBuf in = frame.duplicate();
+			in.readerIndex(payloadOffset);
+			boolean keyIds = FrameFormat.has(crcCode, FrameFormat.KEY_IDS);
+			for (int i = 0; i < attachmentCount; i++) {
+				if (keyIds) {
+					KeyDictionary.skipKey(in);
+				} else {
+					in.skipBytes(in.readInt());
+				}
+				in.skipBytes(in.readInt());
+			}
+			bodyOffset = in.readerIndex();
+		}
+		return bodyOffset;
+	}
+}
@@ -9,48 +9,96 @@ public final class Header {
 	private long sessionID;
 	private byte type;
 	private byte priority;
-	private Map<String, Object> attachment = new HashMap<String, Object>();
+	/** Pairs a SERVICE_RESP with its SERVICE_REQ, 0 if not used. */
+	private long requestID;
+	private Map<String, Object> attachment;
+	/** Backing frame of a lazily decoded header, null once detached. */
+	private FrameView view;
+
+	public Header() {
+		attachment = new HashMap<String, Object>();
+	}
+
+	Header(FrameView view) {
+		this.view = view;
+	}
+
 	public int getCrcCode() {
-		return crcCode;
+		return view != null ? view.crcCode() : crcCode;
 	}
 	public void setCrcCode(int crcCode) {
+		detach();
 		this.crcCode = crcCode;
 	}
 	public int getLength() {
-		return length;
+		return view != null ? view.length() : length;
 	}
 	public void setLength(int length) {
+		detach();
 		this.length = length;
 	}
 	public long getSessionID() {
-		return sessionID;
+		return view != null ? view.sessionID() : sessionID;
 	}
 	public void setSessionID(long sessionID) {
+		detach();
 		this.sessionID = sessionID;
 	}
 	public byte getType() {
-		return type;
+		return view != null ? view.type() : type;
 	}
 	public void setType(byte type) {
+		detach();
 		this.type = type;
 	}
 	public byte getPriority() {
-		return priority;
+		return view != null ? view.priority() : priority;
 	}
 	public void setPriority(byte priority) {
+		detach();
 		this.priority = priority;
 	}
+	public long getRequestID() {
+		return view != null ? view.requestID() : requestID;
+	}
+	public void setRequestID(long requestID) {
+		detach();
+		this.requestID = requestID;
+	}
 	public Map<String, Object> getAttachment() {
+		if (attachment == null) {
+			attachment = view.attachment();
+		}
 		return attachment;
 	}
 	public void setAttachment(Map<String, Object> attachment) {
+		detach();
 		this.attachment = attachment;
 	}
+
+	/**
+	 * Copies everything out of the backing frame before a field is changed.
+	 */
+	private void detach() {
+		if (view != null) {
+			getAttachment();
+			crcCode = view.crcCode();
+			length = view.length();
+			sessionID = view.sessionID();
+			type = view.type();
+			priority = view.priority();
+			requestID = view.requestID();
+			view = null;
+		}
+	}
+
 	@Override
 	public String toString() {
-		return "Header [crcCode=" + crcCode + ", length=" + length
-				+ ", sessionID=" + sessionID + ", type=" + type + ", priority="
-				+ priority + ", attachment=" + attachment + "]";
+		return "Header [crcCode=" + getCrcCode() + ", length=" + getLength()
+				+ ", sessionID=" + getSessionID() + ", type=" + getType()
+				+ ", priority=" + getPriority() + ", requestID="
+				+ getRequestID() + ", attachment="
+				+ getAttachment() + "]";
 	}
-	
+
 }
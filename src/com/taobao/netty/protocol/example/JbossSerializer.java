@@ -0,0 +1,73 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+import org.jboss.marshalling.Marshaller;
+import org.jboss.marshalling.Unmarshaller;
+
+/**
+ * {@link Serializer} backed by JBoss "serial" marshalling. Every object is
+ * written as a complete stream with its own class descriptors.
+ */
+public class JbossSerializer implements Serializer {
+
+	private final Marshaller marshaller;
+	private final Unmarshaller unmarshaller;
+	private final ChannelBufferByteOutput output = new ChannelBufferByteOutput(
+			null);
+	private final ChannelBufferByteInput input = new ChannelBufferByteInput(
+			null);
+
+	public JbossSerializer() throws IOException {
+		this(MarshallingCodecFactory.buildMarshalling(), MarshallingCodecFactory
+				.buildUnMarshalling());
+	}
+
+	JbossSerializer(Marshaller marshaller, Unmarshaller unmarshaller) {
+		this.marshaller = marshaller;
+		this.unmarshaller = unmarshaller;
+	}
+
+	@Override
+	public byte id() {
+		return JBOSS;
+	}
+
+	@Override
+	public void serialize(Object obj, ByteBuf out) throws Exception {
+		output.setBuffer(out);
+		try {
+			marshaller.start(output);
+			marshaller.writeObject(obj);
+			marshaller.finish();
+		} finally {
+			marshaller.close();
+			output.setBuffer(null);
+		}
+	}
+
+	@Override
+	public Object deserialize(ByteBuf in) throws Exception {
+		input.setBuffer(in);
+		try {
+			unmarshaller.start(input);
+			Object obj = unmarshaller.readObject();
+			unmarshaller.finish();
+			return obj;
+		} finally {
+			unmarshaller.close();
+			input.setBuffer(null);
+		}
+	}
+
+	@Override
+	public boolean takeDefinitions() {
+		return false;
+	}
+
+	@Override
+	public void dropDefinitions() {
+	}
+}
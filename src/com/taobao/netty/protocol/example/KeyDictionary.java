@@ -0,0 +1,141 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attachment key table for one direction of a session. Both ends start from
+ * the key list exchanged at login; the sender then defines new keys in band
+ * as it first uses them. A key is written as one varint:
+ *
+ * <pre>
+ * id &lt;&lt; 1          reference to a known key
+ * id &lt;&lt; 2 | 1      definition, followed by the key string
+ * 3                 literal that is not remembered, followed by the key string
+ * </pre>
+ *
+ * The sending side is used from the channel's event loop only. On the
+ * receiving side the decoder adds entries while other threads may resolve
+ * ids of lazily decoded messages, so the table is published through a
+ * volatile array.
+ */
+final class KeyDictionary {
+
+	static final int MAX_KEYS = 1024;
+	private static final int LITERAL = 3;
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private volatile String[] keys;
+	private int size;
+
+	KeyDictionary(List<String> initialKeys) {
+		keys = new String[Math.max(16, initialKeys.size() * 2)];
+		for (String key : initialKeys) {
+			if (!ids.containsKey(key) && size < MAX_KEYS) {
+				add(key.intern());
+			}
+		}
+	}
+
+	/**
+	 * Writes a key and returns true if it had to be defined.
+	 */
+	boolean writeKey(String key, ByteBuf out) {
+		Integer id = ids.get(key);
+		if (id != null) {
+			VarInts.writeVarInt(out, id << 1);
+			return false;
+		}
+		if (size >= MAX_KEYS) {
+			VarInts.writeVarInt(out, LITERAL);
+			CompactSerializer.writeString(key, out);
+			return false;
+		}
+		VarInts.writeVarInt(out, size << 2 | 1);
+		CompactSerializer.writeString(key, out);
+		add(key.intern());
+		return true;
+	}
+
+	/**
+	 * Number of keys in the table, to be passed to {@link #truncate(int)} if
+	 * the frame being written is dropped.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Forgets the keys defined since the table had {@code size} entries,
+	 * when the frame that defined them is never sent.
+	 */
+	void truncate(int size) {
+		String[] table = keys;
+		while (this.size > size) {
+			this.size--;
+			ids.remove(table[this.size]);
+			table[this.size] = null;
+		}
+	}
+
+	/**
+	 * Reads a key. Definitions are stored the first time they are read and
+	 * the stored instance is returned on later reads of the same frame.
+	 */
+	String readKey(ByteBuf in) {
+		int value = VarInts.readVarInt(in);
+		if ((value & 1) == 0) {
+			return key(value >>> 1);
+		}
+		if (value == LITERAL) {
+			return CompactSerializer.readString(in);
+		}
+		int id = value >>> 2;
+		String[] table = keys;
+		if (id < table.length && table[id] != null) {
+			in.skipBytes(VarInts.readVarInt(in));
+			return table[id];
+		}
+		if (id != size || size >= MAX_KEYS) {
+			throw new CorruptedFrameException("unexpected key definition: "
+					+ id);
+		}
+		String key = CompactSerializer.readString(in).intern();
+		add(key);
+		return key;
+	}
+
+	/**
+	 * Moves past a key without resolving it.
+	 */
+	static void skipKey(ByteBuf in) {
+		if ((VarInts.readVarInt(in) & 1) != 0) {
+			in.skipBytes(VarInts.readVarInt(in));
+		}
+	}
+
+	private String key(int id) {
+		String[] table = keys;
+		if (id >= table.length || table[id] == null) {
+			throw new CorruptedFrameException("unknown key id: " + id);
+		}
+		return table[id];
+	}
+
+	private void add(String key) {
+		String[] table = keys;
+		if (size == table.length) {
+			String[] grown = new String[Math.min(table.length * 2, MAX_KEYS)];
+			System.arraycopy(table, 0, grown, 0, size);
+			table = grown;
+		}
+		table[size] = key;
+		ids.put(key, size);
+		size++;
+		keys = table;
+	}
+}
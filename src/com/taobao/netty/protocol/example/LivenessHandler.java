@@ -0,0 +1,163 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read timeout and idle detection for all channels on one shared
+ * {@link HashedWheelTimer}, in place of a ReadTimeoutHandler and a heartbeat
+ * task scheduled on the event loop of every channel.
+ *
+ * Reads and writes only record when they happened. Each channel has at most
+ * one timeout in the wheel, set to its next deadline. When it expires the
+ * check runs on the channel's event loop and either closes the channel after
+ * {@link ReadTimeoutException}, fires an {@link IdleStateEvent}, or sets the
+ * next timeout. A channel is idle when nothing was read or nothing was
+ * written for the idle time; the event says which, and is fired again only
+ * after another idle time without a change.
+ */
+public class LivenessHandler extends ChannelHandlerAdapter {
+
+	private static final HashedWheelTimer WHEEL = new HashedWheelTimer(
+			new DefaultThreadFactory("liveness", true), 100,
+			TimeUnit.MILLISECONDS, 1024);
+
+	private final long readTimeoutNanos;
+	private final long idleNanos;
+	private long lastRead;
+	private long lastWrite;
+	private long lastIdleEvent;
+	private Timeout timeout;
+	private boolean stopped;
+	private ChannelHandlerContext ctx;
+
+	private final TimerTask expired = new TimerTask() {
+		@Override
+		public void run(Timeout timeout) {
+			ctx.executor().execute(check);
+		}
+	};
+
+	private final Runnable check = new Runnable() {
+		@Override
+		public void run() {
+			check();
+		}
+	};
+
+	/**
+	 * @param idleMillis
+	 *            0 for no {@link IdleStateEvent}s
+	 */
+	public LivenessHandler(long readTimeoutMillis, long idleMillis) {
+		this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+		if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+			start();
+		}
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		stop();
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		start();
+		ctx.fireChannelActive();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		stop();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		lastRead = System.nanoTime();
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg,
+			ChannelPromise promise) throws Exception {
+		lastWrite = System.nanoTime();
+		ctx.write(msg, promise);
+	}
+
+	private void start() {
+		if (timeout != null || stopped) {
+			return;
+		}
+		long now = System.nanoTime();
+		lastRead = now;
+		lastWrite = now;
+		lastIdleEvent = now;
+		schedule(now);
+	}
+
+	private void stop() {
+		stopped = true;
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+	}
+
+	private void check() {
+		if (stopped) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (now - lastRead >= readTimeoutNanos) {
+			stop();
+			ctx.fireExceptionCaught(ReadTimeoutException.INSTANCE);
+			ctx.close();
+			return;
+		}
+		if (idleNanos > 0 && now - idleSince() >= idleNanos) {
+			lastIdleEvent = now;
+			ctx.fireUserEventTriggered(lastRead < lastWrite
+					? IdleStateEvent.READER_IDLE_STATE_EVENT
+					: IdleStateEvent.WRITER_IDLE_STATE_EVENT);
+			if (stopped) {
+				return;
+			}
+		}
+		schedule(now);
+	}
+
+	/**
+	 * Start of the current idle time: the older of the last read and the last
+	 * write, or the last idle event if that came later.
+	 */
+	private long idleSince() {
+		return Math.max(Math.min(lastRead, lastWrite), lastIdleEvent);
+	}
+
+	private void schedule(long now) {
+		long deadline = lastRead + readTimeoutNanos;
+		if (idleNanos > 0) {
+			deadline = Math.min(deadline, idleSince() + idleNanos);
+		}
+		timeout = WHEEL.newTimeout(expired, Math.max(0, deadline - now),
+				TimeUnit.NANOSECONDS);
+	}
+}
@@ -2,30 +2,64 @@ package com.taobao.netty.protocol.example;
 
 import java.io.IOException;
 
+import org.jboss.marshalling.ClassTable;
 import org.jboss.marshalling.Marshaller;
 import org.jboss.marshalling.MarshallerFactory;
 import org.jboss.marshalling.Marshalling;
 import org.jboss.marshalling.MarshallingConfiguration;
+import org.jboss.marshalling.ObjectTable;
 import org.jboss.marshalling.Unmarshaller;
 
 public final class MarshallingCodecFactory {
 	protected static Marshaller buildMarshalling() throws IOException {
+		return buildMarshalling(null, null);
+	}
+
+	protected static Marshaller buildMarshalling(ClassTable classTable,
+			ObjectTable objectTable) throws IOException {
 		final MarshallerFactory marshallerFactory = Marshalling
 				.getProvidedMarshallerFactory("serial");
-		final MarshallingConfiguration configuration = new MarshallingConfiguration();
-		configuration.setVersion(5);
+		final MarshallingConfiguration configuration = configuration(
+				classTable, objectTable);
 		Marshaller marshaller = marshallerFactory
 				.createMarshaller(configuration);
 		return marshaller;
 	}
 
 	protected static Unmarshaller buildUnMarshalling() throws IOException {
+		return buildUnMarshalling(null, null);
+	}
+
+	protected static Unmarshaller buildUnMarshalling(ClassTable classTable,
+			ObjectTable objectTable) throws IOException {
 		final MarshallerFactory marshallerFactory = Marshalling
 				.getProvidedMarshallerFactory("serial");
-		final MarshallingConfiguration configuration = new MarshallingConfiguration();
-		configuration.setVersion(5);
+		final MarshallingConfiguration configuration = configuration(
+				classTable, objectTable);
 		final Unmarshaller unmarshaller = marshallerFactory
 				.createUnmarshaller(configuration);
 		return unmarshaller;
 	}
+
+	protected static Serializer buildSerializer(byte id) throws IOException {
+		switch (id) {
+		case Serializer.JBOSS:
+			return new JbossSerializer();
+		case Serializer.COMPACT:
+			return new CompactSerializer();
+		case Serializer.JBOSS_SESSION:
+			return new SessionJbossSerializer();
+		default:
+			throw new IllegalArgumentException("unknown serializer: " + id);
+		}
+	}
+
+	private static MarshallingConfiguration configuration(
+			ClassTable classTable, ObjectTable objectTable) {
+		final MarshallingConfiguration configuration = new MarshallingConfiguration();
+		configuration.setVersion(5);
+		configuration.setClassTable(classTable);
+		configuration.setObjectTable(objectTable);
+		return configuration;
+	}
 }
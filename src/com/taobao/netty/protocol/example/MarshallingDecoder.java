@@ -3,29 +3,34 @@ package com.taobao.netty.protocol.example;
 import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
-import org.jboss.marshalling.ByteInput;
-import org.jboss.marshalling.Unmarshaller;
 
 public class MarshallingDecoder {
 
-	private final Unmarshaller unmarshaller;
+	private final Serializer[] serializers = new Serializer[FrameFormat.SERIALIZER_MASK + 1];
+	private Serializer serializer;
 
 	public MarshallingDecoder() throws IOException {
-		unmarshaller = MarshallingCodecFactory.buildUnMarshalling();
+		useSerializer(Serializer.JBOSS);
+	}
+
+	/**
+	 * Selects the serializer announced by the frame being decoded.
+	 */
+	protected void useSerializer(byte id) throws IOException {
+		if (serializer != null && serializer.id() == id) {
+			return;
+		}
+		if (serializers[id] == null) {
+			serializers[id] = MarshallingCodecFactory.buildSerializer(id);
+		}
+		serializer = serializers[id];
 	}
 
 	protected Object decode(ByteBuf in) throws Exception {
 		int objectSize = in.readInt();
 		ByteBuf buf = in.slice(in.readerIndex(), objectSize);
-		ByteInput input = new ChannelBufferByteInput(buf);
-		try {
-			unmarshaller.start(input);
-			Object obj = unmarshaller.readObject();
-			unmarshaller.finish();
-			in.readerIndex(in.readerIndex() + objectSize);
-			return obj;
-		} finally {
-			unmarshaller.close();
-		}
+		Object obj = serializer.deserialize(buf);
+		in.readerIndex(in.readerIndex() + objectSize);
+		return obj;
 	}
 }
@@ -4,28 +4,50 @@ import io.netty.buffer.ByteBuf;
 
 import java.io.IOException;
 
-import org.jboss.marshalling.Marshaller;
-
 public class MarshallingEncoder {
 	private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
-	Marshaller marshaller;
+	private final Serializer[] serializers = new Serializer[FrameFormat.SERIALIZER_MASK + 1];
+	private Serializer serializer;
 
 	public MarshallingEncoder() throws IOException {
-		marshaller = MarshallingCodecFactory.buildMarshalling();
+		useSerializer(Serializer.JBOSS);
 	}
 
-	protected void encode(Object msg, ByteBuf out) throws Exception {
-		try {
-			int lengthPos = out.writerIndex();
-			out.writeBytes(LENGTH_PLACEHOLDER);
-			ChannelBufferByteOutput output = new ChannelBufferByteOutput(out);
-			marshaller.start(output);
-			marshaller.writeObject(msg);
-			marshaller.finish();
-			out.setInt(lengthPos, out.writerIndex() - lengthPos - 4);
-		} finally {
-			marshaller.close();
+	/**
+	 * Switches the serializer used for the following objects. Instances are
+	 * created on first use and kept for the life of this encoder.
+	 */
+	protected void useSerializer(byte id) throws IOException {
+		if (serializer != null && serializer.id() == id) {
+			return;
+		}
+		if (serializers[id] == null) {
+			serializers[id] = MarshallingCodecFactory.buildSerializer(id);
 		}
+		serializer = serializers[id];
+	}
+
+	protected byte serializerId() {
+		return serializer.id();
+	}
+
+	/**
+	 * See {@link Serializer#takeDefinitions()}. Called once per frame, after
+	 * its last object.
+	 */
+	protected boolean takeDefinitions() {
+		return serializer.takeDefinitions();
+	}
+
+	protected void dropDefinitions() {
+		serializer.dropDefinitions();
+	}
+
+	protected void encode(Object msg, ByteBuf out) throws Exception {
+		int lengthPos = out.writerIndex();
+		out.writeBytes(LENGTH_PLACEHOLDER);
+		serializer.serialize(msg, out);
+		out.setInt(lengthPos, out.writerIndex() - lengthPos - 4);
 	}
 
 }
@@ -24,7 +24,7 @@ public enum MessageType {
 
     SERVICE_REQ((byte) 0), SERVICE_RESP((byte) 1), ONE_WAY((byte) 2), LOGIN_REQ(
 	    (byte) 3), LOGIN_RESP((byte) 4), HEARTBEAT_REQ((byte) 5), HEARTBEAT_RESP(
-	    (byte) 6);
+	    (byte) 6), WINDOW_UPDATE((byte) 7);
 
     private byte value;
 
@@ -23,6 +23,23 @@ package com.taobao.netty.protocol.example;
 public final class NettyConstant {
     public static final String REMOTEIP = "127.0.0.1";
     public static final int PORT = 8080;
+    /** Port of the HTTP listener serving /metrics next to the server. */
+    public static final int METRICS_PORT = 8081;
     public static final int LOCAL_PORT = 12088;
     public static final String LOCALIP = "127.0.0.1";
+    /** Attachment of a SERVICE_RESP describing why the call failed. */
+    public static final String SERVICE_ERROR = "error";
+    /**
+     * Attachment of a LOGIN_REQ asking to resume a session: its id and the
+     * token from the last LOGIN_RESP, as a long[2].
+     */
+    public static final String RESUME_SESSION = "resume";
+    /** Attachment of a LOGIN_RESP: the token for resuming its session. */
+    public static final String SESSION_TOKEN = "token";
+    /**
+     * Attachment of a LOGIN_RESP: how many SERVICE_REQ and ONE_WAY messages
+     * the server takes before the client has to wait for a WINDOW_UPDATE. Of
+     * a WINDOW_UPDATE: how many more it takes.
+     */
+    public static final String RECEIVE_WINDOW = "window";
 }
@@ -1,8 +1,30 @@
 package com.taobao.netty.protocol.example;
 
-public final class NettyMessage {
+import io.netty.util.ReferenceCounted;
+
+/**
+ * A protocol message. Messages decoded in lazy mode keep a reference to their
+ * frame and decode attachments and body on first access, so whoever consumes
+ * them must release them. For all other messages reference counting is a
+ * no-op.
+ */
+public final class NettyMessage implements ReferenceCounted {
 	private Header header;
 	private Object body;
+	/** Backing frame of a lazily decoded message, null otherwise. */
+	private final FrameView view;
+	private boolean bodyDecoded;
+
+	public NettyMessage() {
+		view = null;
+		bodyDecoded = true;
+	}
+
+	NettyMessage(FrameView view) {
+		this.view = view;
+		this.header = new Header(view);
+	}
+
 	public Header getHeader() {
 		return header;
 	}
@@ -10,11 +32,45 @@ public final class NettyMessage {
 		this.header = header;
 	}
 	public Object getBody() {
+		if (!bodyDecoded) {
+			body = view.body();
+			bodyDecoded = true;
+		}
 		return body;
 	}
 	public void setBody(Object body) {
 		this.body = body;
+		this.bodyDecoded = true;
+	}
+
+	@Override
+	public int refCnt() {
+		return view != null ? view.frame().refCnt() : 1;
+	}
+
+	@Override
+	public NettyMessage retain() {
+		return retain(1);
+	}
+
+	@Override
+	public NettyMessage retain(int increment) {
+		if (view != null) {
+			view.frame().retain(increment);
+		}
+		return this;
 	}
+
+	@Override
+	public boolean release() {
+		return release(1);
+	}
+
+	@Override
+	public boolean release(int decrement) {
+		return view != null && view.frame().release(decrement);
+	}
+
 	@Override
 	public String toString() {
 		return "NettyMessage [header=" + header + "]";
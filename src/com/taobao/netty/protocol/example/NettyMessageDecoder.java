@@ -2,59 +2,245 @@ package com.taobao.netty.protocol.example;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.TooLongFrameException;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 public class NettyMessageDecoder extends LengthFieldBasedFrameDecoder {
 
 	MarshallingDecoder marshallingDecoder;
+	private final boolean lazy;
+	private final int maxFrameLength;
+	/** Largest frame accepted once decompressed. */
+	private final int maxUncompressedLength;
+	private ProtocolSession session;
+	/** Frames being put together from fragments, by stream. */
+	private final ByteBuf[] partial = new ByteBuf[FrameFormat.FRAGMENT_STREAM_MASK
+			+ 1];
 
 	public NettyMessageDecoder(int maxFrameLength, int lengthFieldOffset,
 			int lengthFieldLength) throws IOException {
+		this(maxFrameLength, lengthFieldOffset, lengthFieldLength, false);
+	}
+
+	/**
+	 * @param lazy
+	 *            if true, every {@link NettyMessage} holds on to its frame and
+	 *            decodes attachments and body only when they are first
+	 *            accessed. Such messages must be released by the handler that
+	 *            consumes them.
+	 */
+	public NettyMessageDecoder(int maxFrameLength, int lengthFieldOffset,
+			int lengthFieldLength, boolean lazy) throws IOException {
 		super(maxFrameLength, lengthFieldOffset, lengthFieldLength);
 		marshallingDecoder = new MarshallingDecoder();
+		this.lazy = lazy;
+		this.maxFrameLength = maxFrameLength;
+		this.maxUncompressedLength = maxFrameLength * 16;
 	}
 
 	@Override
 	protected Object decode(ChannelHandlerContext ctx, ByteBuf in)
 			throws Exception {
-		ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+		if (!ctx.channel().config().isAutoRead()) {
+			// backpressure: leave the rest of this read batch in the
+			// cumulation until reading is turned back on
+			return null;
+		}
+		ByteBuf frame;
+		if (in.readableBytes() >= 4
+				&& FrameFormat.version(in.getInt(in.readerIndex())) == FrameFormat.VERSION_2) {
+			frame = decodeVersion2(ctx, in);
+		} else {
+			frame = (ByteBuf) super.decode(ctx, in);
+		}
 		if (frame == null) {
 			return null;
 		}
+		long startedAt = System.nanoTime();
+		ProtocolMetrics.BYTES_IN.add(frame.readableBytes());
+		if (FrameFormat.has(frame.getInt(frame.readerIndex()),
+				FrameFormat.FRAGMENT)) {
+			frame = reassemble(ctx, frame);
+			if (frame == null) {
+				return null;
+			}
+		}
+
+		FrameView view;
+		try {
+			view = new FrameView(frame, marshallingDecoder, session(ctx)
+					.inboundKeys());
+			if (FrameFormat.has(view.crcCode(), FrameFormat.COMPRESSED)) {
+				frame = decompress(ctx, view);
+				view = new FrameView(frame, marshallingDecoder, session(ctx)
+						.inboundKeys());
+			}
+		} catch (RuntimeException e) {
+			frame.release();
+			throw e;
+		}
+		if (lazy) {
+			NettyMessage message = new NettyMessage(view);
+			if (FrameFormat.has(view.crcCode(), FrameFormat.DEFINES)) {
+				// later frames may refer to what this one defines
+				try {
+					message.getHeader().getAttachment();
+					message.getBody();
+				} catch (RuntimeException e) {
+					frame.release();
+					throw e;
+				}
+			}
+			ProtocolMetrics.decoded(view.type(), System.nanoTime() - startedAt);
+			return message;
+		}
+		try {
+			NettyMessage message = new NettyMessage();
+			Header header = new Header();
+			header.setCrcCode(view.crcCode());
+			header.setLength(view.length());
+			header.setSessionID(view.sessionID());
+			header.setType(view.type());
+			header.setPriority(view.priority());
+			header.setRequestID(view.requestID());
+			header.setAttachment(view.attachment());
+			message.setBody(view.body());
+			message.setHeader(header);
+			ProtocolMetrics.decoded(view.type(), System.nanoTime() - startedAt);
+			return message;
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Cuts one version 2 frame, whose length is a varint after the crcCode.
+	 */
+	private ByteBuf decodeVersion2(ChannelHandlerContext ctx, ByteBuf in) {
+		int index = in.readerIndex() + 4;
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (index == in.writerIndex()) {
+				return null;
+			}
+			if (shift == 35) {
+				throw new CorruptedFrameException("malformed frame length");
+			}
+			byte b = in.getByte(index++);
+			length |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		int frameLength = index - in.readerIndex() + length;
+		if (length < 0 || frameLength > maxFrameLength) {
+			in.skipBytes(in.readableBytes());
+			throw new TooLongFrameException("frame length exceeds "
+					+ maxFrameLength + ": " + length);
+		}
+		if (in.readableBytes() < frameLength) {
+			return null;
+		}
+		ByteBuf frame = extractFrame(ctx, in, in.readerIndex(), frameLength);
+		in.skipBytes(frameLength);
+		return frame;
+	}
+
+	/**
+	 * Adds a fragment to its stream and returns the original frame once the
+	 * last piece is in, null before. Releases {@code fragment}.
+	 */
+	private ByteBuf reassemble(ChannelHandlerContext ctx, ByteBuf fragment) {
+		try {
+			ByteBuf in = fragment.duplicate();
+			in.skipBytes(4);
+			VarInts.readVarInt(in);
+			int info = in.readUnsignedByte();
+			int stream = info & FrameFormat.FRAGMENT_STREAM_MASK;
+			ByteBuf frame = partial[stream];
+			if (frame == null) {
+				frame = ctx.alloc().directBuffer(in.readableBytes() * 4);
+				partial[stream] = frame;
+			}
+			if (frame.readableBytes() + in.readableBytes() > maxFrameLength) {
+				partial[stream] = null;
+				frame.release();
+				throw new TooLongFrameException("fragmented frame exceeds "
+						+ maxFrameLength);
+			}
+			frame.writeBytes(in);
+			if (!FrameFormat.has(info, FrameFormat.LAST_FRAGMENT)) {
+				return null;
+			}
+			partial[stream] = null;
+			return frame;
+		} finally {
+			fragment.release();
+		}
+	}
+
+	@Override
+	protected void handlerRemoved0(ChannelHandlerContext ctx)
+			throws Exception {
+		for (int i = 0; i < partial.length; i++) {
+			if (partial[i] != null) {
+				partial[i].release();
+				partial[i] = null;
+			}
+		}
+	}
 
-		NettyMessage message = new NettyMessage();
-		Header header = new Header();
-		header.setCrcCode(frame.readInt());
-		header.setLength(frame.readInt());
-		header.setSessionID(frame.readLong());
-		header.setType(frame.readByte());
-		header.setPriority(frame.readByte());
-
-		int size = frame.readInt();
-		if (size > 0) {
-			Map<String, Object> attch = new HashMap<String, Object>(size);
-			int keySize = 0;
-			byte[] keyArray = null;
-			String key = null;
-			for (int i = 0; i < size; i++) {
-				keySize = frame.readInt();
-				keyArray = new byte[keySize];
-				frame.readBytes(keyArray);
-				key = new String(keyArray, "UTF-8");
-				attch.put(key, marshallingDecoder.decode(frame));
-			}
-			keyArray = null;
-			key = null;
-			header.setAttachment(attch);
-		}
-		if (frame.readableBytes() > 4) {
-			message.setBody(marshallingDecoder.decode(frame));
-		}
-		message.setHeader(header);
-		return message;
+	/**
+	 * Returns a frame with the same fixed header, the payload decompressed
+	 * and {@link FrameFormat#COMPRESSED} cleared. Releases the view's frame
+	 * on success.
+	 */
+	private ByteBuf decompress(ChannelHandlerContext ctx, FrameView view) {
+		ByteBuf frame = view.frame();
+		ByteBuf decompressed = null;
+		try {
+			ByteBuf in = frame.duplicate();
+			in.readerIndex(view.payloadOffset());
+			byte codec = in.readByte();
+			int length = VarInts.readVarInt(in);
+			if (length < 0 || length > maxUncompressedLength) {
+				throw new TooLongFrameException("uncompressed frame of "
+						+ length + " bytes exceeds " + maxUncompressedLength);
+			}
+			int fieldsLength = view.payloadOffset() - view.fieldsOffset();
+			decompressed = ctx.alloc().directBuffer(
+					view.payloadOffset() + 4 + length);
+			decompressed.writeInt(view.crcCode() & ~FrameFormat.COMPRESSED);
+			boolean version2 = FrameFormat.version(view.crcCode()) == FrameFormat.VERSION_2;
+			if (version2) {
+				VarInts.writeVarInt(decompressed, fieldsLength + length);
+			} else {
+				decompressed.writeInt(0);
+			}
+			decompressed.writeBytes(frame, view.fieldsOffset(), fieldsLength);
+			session(ctx).getCompression().decompress(ctx.alloc(), codec, in,
+					length, decompressed);
+			if (!version2) {
+				decompressed.setInt(4, decompressed.readableBytes() - 8);
+			}
+			frame.release();
+			ByteBuf result = decompressed;
+			decompressed = null;
+			return result;
+		} finally {
+			if (decompressed != null) {
+				decompressed.release();
+			}
+		}
+	}
+
+	private ProtocolSession session(ChannelHandlerContext ctx) {
+		if (session == null) {
+			session = ProtocolSession.get(ctx.channel());
+		}
+		return session;
 	}
 }
@@ -9,12 +9,41 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.CharsetUtil;
 
 public class NettyMessageEncoder extends MessageToMessageEncoder<NettyMessage> {
+	/**
+	 * Size of the fixed header: crcCode, length, sessionID, type, priority and
+	 * the attachment count.
+	 */
+	static final int HEADER_LENGTH = 22;
+	/** Room for the version 2 crcCode and a varint length of up to 5 bytes. */
+	private static final int VERSION_2_RESERVED = 9;
+	private static final int INITIAL_ESTIMATE = 256;
+
+	/**
+	 * Encoded frames of messages that carry nothing but their type, per
+	 * header version and type value.
+	 */
+	private static final ByteBuf[][] TYPE_ONLY_FRAMES = {
+			typeOnlyFrames(FrameFormat.VERSION_1),
+			typeOnlyFrames(FrameFormat.VERSION_2) };
+
 	MarshallingEncoder marshallingEncoder;
+	/**
+	 * Running frame size estimate per {@link MessageType}, indexed by the type
+	 * value. The encoder is created per channel, so no synchronization is
+	 * needed.
+	 */
+	private final int[] sizeEstimates;
+	private ProtocolSession session;
 
 	public NettyMessageEncoder() throws IOException {
 		this.marshallingEncoder = new MarshallingEncoder();
+		this.sizeEstimates = new int[MessageType.values().length];
+		for (int i = 0; i < sizeEstimates.length; i++) {
+			sizeEstimates[i] = INITIAL_ESTIMATE;
+		}
 	}
 
 	@Override
@@ -22,34 +51,236 @@ public class NettyMessageEncoder extends MessageToMessageEncoder<NettyMessage> {
 			List<Object> out) throws Exception {
 		if (msg == null || msg.getHeader() == null)
 			throw new Exception("The encode message is null");
-		ByteBuf sendBuf = Unpooled.buffer();
-		sendBuf.writeInt((msg.getHeader().getCrcCode()));
-		sendBuf.writeInt((msg.getHeader().getLength()));
-		sendBuf.writeLong((msg.getHeader().getSessionID()));
-		sendBuf.writeByte((msg.getHeader().getType()));
-		sendBuf.writeByte((msg.getHeader().getPriority()));
-		sendBuf.writeInt((msg.getHeader().getAttachment().size()));
-		String key = null;
-		byte[] keyArray = null;
-		Object value = null;
-		for (Map.Entry<String, Object> param : msg.getHeader().getAttachment()
-				.entrySet()) {
-			key = param.getKey();
-			keyArray = key.getBytes("UTF-8");
-			sendBuf.writeInt(keyArray.length);
-			sendBuf.writeBytes(keyArray);
-			value = param.getValue();
-			marshallingEncoder.encode(value, sendBuf);
-		}
-		key = null;
-		keyArray = null;
-		value = null;
-		if (msg.getBody() != null) {
-			marshallingEncoder.encode(msg.getBody(), sendBuf);
-		} else{
-			sendBuf.writeInt(0);
-		}
-		sendBuf.setInt(4, sendBuf.readableBytes() - 8);
+		long startedAt = System.nanoTime();
+		Header header = msg.getHeader();
+		if (session == null) {
+			session = ProtocolSession.get(ctx.channel());
+		}
+		marshallingEncoder.useSerializer(session.getSerializer());
+		int options = marshallingEncoder.serializerId();
+		KeyDictionary keys = null;
+		int keysBefore = 0;
+		if (session.isKeyIds()) {
+			keys = session.outboundKeys();
+			keysBefore = keys.size();
+			options |= FrameFormat.KEY_IDS;
+		}
+		boolean version2 = session.getVersion() == FrameFormat.VERSION_2;
+		ByteBuf sendBuf = ctx.alloc().directBuffer(estimate(header.getType()));
+		try {
+			Map<String, Object> attachment = header.getAttachment();
+			if (version2) {
+				writeHeaderVersion2(header, attachment.size(), sendBuf);
+			} else {
+				sendBuf.writeInt(header.getCrcCode());
+				sendBuf.writeInt(header.getLength());
+				sendBuf.writeLong(header.getSessionID());
+				sendBuf.writeByte(header.getType());
+				sendBuf.writeByte(header.getPriority());
+				sendBuf.writeInt(attachment.size());
+			}
+			if (header.getRequestID() != 0) {
+				VarInts.writeVarLong(sendBuf, header.getRequestID());
+				options |= FrameFormat.REQUEST_ID;
+			}
+			int payloadOffset = sendBuf.writerIndex();
+			for (Map.Entry<String, Object> param : attachment.entrySet()) {
+				if (keys != null) {
+					if (keys.writeKey(param.getKey(), sendBuf)) {
+						options |= FrameFormat.DEFINES;
+					}
+				} else {
+					byte[] keyArray = param.getKey().getBytes(CharsetUtil.UTF_8);
+					sendBuf.writeInt(keyArray.length);
+					sendBuf.writeBytes(keyArray);
+				}
+				marshallingEncoder.encode(param.getValue(), sendBuf);
+			}
+			if (msg.getBody() != null) {
+				marshallingEncoder.encode(msg.getBody(), sendBuf);
+			} else if (!version2) {
+				sendBuf.writeInt(0);
+			}
+			record(header.getType(), sendBuf.readableBytes());
+			int allocated = sendBuf.capacity();
+			if (session.getCompressionCodec() != Compression.NONE
+					&& sendBuf.readableBytes() - payloadOffset >= session
+							.getCompressionThreshold()) {
+				ByteBuf compressed = compress(ctx, sendBuf, payloadOffset);
+				if (compressed != null) {
+					allocated += compressed.capacity();
+					sendBuf.release();
+					sendBuf = compressed;
+					options |= FrameFormat.COMPRESSED;
+				}
+			}
+			if (marshallingEncoder.takeDefinitions()) {
+				options |= FrameFormat.DEFINES;
+			}
+			if (version2) {
+				int crcCode = (header.getCrcCode() & ~0xffff)
+						| FrameFormat.VERSION_2 << 8 | options;
+				finishVersion2(crcCode, sendBuf);
+			} else {
+				sendBuf.setInt(0, (header.getCrcCode() & ~0xff) | options);
+				sendBuf.setInt(4, sendBuf.readableBytes() - 8);
+			}
+			out.add(sendBuf);
+			ProtocolMetrics.BYTES_OUT.add(sendBuf.readableBytes());
+			ProtocolMetrics.ENCODE_ALLOCATED.record(allocated);
+			ProtocolMetrics.encoded(header.getType(), System.nanoTime()
+					- startedAt);
+			sendBuf = null;
+		} finally {
+			if (sendBuf != null) {
+				sendBuf.release();
+				marshallingEncoder.dropDefinitions();
+				if (keys != null) {
+					keys.truncate(keysBefore);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the encoded frame of a message with only a type, such as a
+	 * heartbeat, for the header version of the session. The frames are built
+	 * once and shared by all channels: the buffer returned has its own
+	 * indices, is read only, and releasing it has no effect.
+	 */
+	public static ByteBuf typeOnlyFrame(ProtocolSession session,
+			MessageType type) {
+		int version = session.getVersion() == FrameFormat.VERSION_2 ? 1 : 0;
+		ByteBuf frame = TYPE_ONLY_FRAMES[version][type.value()].duplicate();
+		ProtocolMetrics.encoded(type.value(), 0);
+		ProtocolMetrics.BYTES_OUT.add(frame.readableBytes());
+		return frame;
+	}
+
+	private static ByteBuf[] typeOnlyFrames(int version) {
+		MessageType[] types = MessageType.values();
+		ByteBuf[] frames = new ByteBuf[types.length];
+		for (MessageType type : types) {
+			int crcCode = FrameFormat.crcCode(version, Serializer.JBOSS);
+			ByteBuf frame;
+			if (version == FrameFormat.VERSION_2) {
+				frame = Unpooled.directBuffer(7, 7);
+				frame.writeInt(crcCode);
+				VarInts.writeVarInt(frame, 2);
+				frame.writeByte(0);
+				frame.writeByte(type.value());
+			} else {
+				frame = Unpooled.directBuffer(HEADER_LENGTH + 4, HEADER_LENGTH + 4);
+				frame.writeInt(crcCode);
+				frame.writeInt(HEADER_LENGTH + 4 - 8);
+				frame.writeLong(0);
+				frame.writeByte(type.value());
+				frame.writeByte(0);
+				frame.writeInt(0);
+				frame.writeInt(0);
+			}
+			frames[type.value()] = Unpooled.unreleasableBuffer(Unpooled
+					.unmodifiableBuffer(frame));
+		}
+		return frames;
+	}
+
+	/**
+	 * Writes the version 2 fields after the length. Room for the crcCode and
+	 * the longest varint length is left in front, see
+	 * {@link #finishVersion2(int, ByteBuf)}.
+	 */
+	private static void writeHeaderVersion2(Header header, int attachments,
+			ByteBuf out) {
+		long sessionID = header.getSessionID();
+		byte priority = header.getPriority();
+		int flags = 0;
+		if (sessionID != 0) {
+			flags |= FrameFormat.HAS_SESSION_ID;
+		}
+		if (priority != 0) {
+			flags |= FrameFormat.HAS_PRIORITY;
+		}
+		if (attachments != 0) {
+			flags |= FrameFormat.HAS_ATTACHMENTS;
+		}
+		out.writerIndex(VERSION_2_RESERVED);
+		out.writeByte(flags);
+		if (sessionID != 0) {
+			VarInts.writeVarLong(out, sessionID);
+		}
+		out.writeByte(header.getType());
+		if (priority != 0) {
+			out.writeByte(priority);
+		}
+		if (attachments != 0) {
+			VarInts.writeVarInt(out, attachments);
+		}
+	}
+
+	/**
+	 * Writes crcCode and length right in front of the fields and moves the
+	 * reader index there, so the unused part of the reserved room is not
+	 * sent.
+	 */
+	private static void finishVersion2(int crcCode, ByteBuf frame) {
+		int end = frame.writerIndex();
+		int length = end - VERSION_2_RESERVED;
+		int start = VERSION_2_RESERVED - 4 - VarInts.sizeOfVarInt(length);
+		frame.writerIndex(start);
+		frame.writeInt(crcCode);
+		VarInts.writeVarInt(frame, length);
+		frame.writerIndex(end);
+		frame.readerIndex(start);
+	}
+
+	/**
+	 * Returns a new frame with the same header and everything from
+	 * {@code payloadOffset} compressed, or null if compression does not make
+	 * it smaller.
+	 */
+	private ByteBuf compress(ChannelHandlerContext ctx, ByteBuf frame,
+			int payloadOffset) {
+		int length = frame.writerIndex() - payloadOffset;
+		byte codec = session.getCompressionCodec();
+		ByteBuf compressed = ctx.alloc().directBuffer(payloadOffset + 6 + length / 2);
+		boolean done = false;
+		try {
+			compressed.writeBytes(frame, 0, payloadOffset);
+			compressed.writeByte(codec);
+			VarInts.writeVarInt(compressed, length);
+			done = session.getCompression().compress(ctx.alloc(), codec,
+					frame.slice(payloadOffset, length), length, compressed);
+			return done ? compressed : null;
+		} finally {
+			if (!done) {
+				compressed.release();
+			}
+		}
+	}
+
+	private int estimate(byte type) {
+		if (type < 0 || type >= sizeEstimates.length) {
+			return INITIAL_ESTIMATE;
+		}
+		return sizeEstimates[type];
+	}
+
+	/**
+	 * Grows the estimate at once when a frame did not fit, and decays it
+	 * slowly otherwise so an occasional large frame does not pin the size.
+	 */
+	private void record(byte type, int frameSize) {
+		if (type < 0 || type >= sizeEstimates.length) {
+			return;
+		}
+		int estimate = sizeEstimates[type];
+		if (frameSize > estimate) {
+			sizeEstimates[type] = frameSize;
+		} else {
+			sizeEstimates[type] = Math.max(HEADER_LENGTH + 4, estimate
+					- ((estimate - frameSize) >> 4));
+		}
 	}
 
 }
@@ -0,0 +1,216 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+
+/**
+ * Outbound scheduler for encoded frames, placed between the socket and
+ * {@link NettyMessageEncoder}. Frames wait in one queue per priority class
+ * and are handed to the channel, highest class first, only while the channel
+ * is writable, so a frame written later can still overtake bulk traffic that
+ * has not reached the socket yet.
+ *
+ * LOGIN, HEARTBEAT and WINDOW_UPDATE frames form the highest class; other
+ * frames are ranked by {@link Header#getPriority()}, clamped to 0-7. Frames
+ * with {@link FrameFormat#DEFINES} set also go to the highest class: the
+ * peer must see a dictionary key or table entry defined before any frame
+ * that refers to it, and the definitions in the order they were made.
+ * Since a class is never overtaken by a frame written after it, a frame can
+ * only get ahead of frames written earlier that do not define anything. Once
+ * the session talks header version 2, frames larger than the fragment size
+ * are cut into {@link FrameFormat#FRAGMENT} frames, so other classes can get
+ * in between the pieces. A class is sent in order, so the class number
+ * doubles as the fragment stream.
+ */
+public class PriorityWriteHandler extends ChannelHandlerAdapter {
+
+	public static final int DEFAULT_FRAGMENT_SIZE = 16 * 1024;
+
+	private static final int MAX_PRIORITY = 7;
+	private static final int CONTROL = MAX_PRIORITY + 1;
+
+	private final int fragmentSize;
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ArrayDeque<Pending>[] queues = new ArrayDeque[CONTROL + 1];
+	/** Bit n is set while queue n is not empty. */
+	private int nonEmpty;
+	private ProtocolSession session;
+
+	public PriorityWriteHandler() {
+		this(DEFAULT_FRAGMENT_SIZE);
+	}
+
+	public PriorityWriteHandler(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new ArrayDeque<Pending>();
+		}
+	}
+
+	@Override
+	public void write(ChannelHandlerContext ctx, Object msg,
+			ChannelPromise promise) throws Exception {
+		if (!(msg instanceof ByteBuf)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		ByteBuf frame = (ByteBuf) msg;
+		int priorityClass = priorityClass(frame);
+		if (frame.readableBytes() > fragmentSize
+				&& session(ctx).getVersion() == FrameFormat.VERSION_2) {
+			fragment(ctx, frame, priorityClass, promise);
+		} else {
+			enqueue(priorityClass, new Pending(frame, promise));
+		}
+	}
+
+	@Override
+	public void flush(ChannelHandlerContext ctx) throws Exception {
+		drain(ctx);
+		ctx.flush();
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx)
+			throws Exception {
+		if (ctx.channel().isWritable() && nonEmpty != 0) {
+			drain(ctx);
+			ctx.flush();
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		discard(new ClosedChannelException());
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+		discard(new ClosedChannelException());
+	}
+
+	private void drain(ChannelHandlerContext ctx) {
+		while (nonEmpty != 0 && ctx.channel().isWritable()) {
+			int priorityClass = 31 - Integer.numberOfLeadingZeros(nonEmpty);
+			ArrayDeque<Pending> queue = queues[priorityClass];
+			Pending pending = queue.poll();
+			if (queue.isEmpty()) {
+				nonEmpty &= ~(1 << priorityClass);
+			}
+			dequeued(pending);
+			ctx.write(pending.frame, pending.promise != null ? pending.promise
+					: ctx.voidPromise());
+		}
+	}
+
+	/**
+	 * Queues the frame as pieces of at most {@link #fragmentSize} bytes each.
+	 * The promise goes with the last piece.
+	 */
+	private void fragment(ChannelHandlerContext ctx, ByteBuf frame,
+			int priorityClass, ChannelPromise promise) {
+		try {
+			while (frame.isReadable()) {
+				int length = Math.min(fragmentSize, frame.readableBytes());
+				boolean last = length == frame.readableBytes();
+				ByteBuf piece = ctx.alloc().directBuffer(length + 10);
+				piece.writeInt(FrameFormat.crcCode(FrameFormat.VERSION_2,
+						FrameFormat.FRAGMENT));
+				VarInts.writeVarInt(piece, length + 1);
+				piece.writeByte(priorityClass
+						| (last ? FrameFormat.LAST_FRAGMENT : 0));
+				piece.writeBytes(frame, length);
+				enqueue(priorityClass, new Pending(piece, last ? promise : null));
+			}
+		} finally {
+			frame.release();
+		}
+	}
+
+	private void enqueue(int priorityClass, Pending pending) {
+		queues[priorityClass].add(pending);
+		nonEmpty |= 1 << priorityClass;
+		ProtocolMetrics.PENDING_WRITES.increment();
+		ProtocolMetrics.PENDING_WRITE_BYTES.add(pending.frame.readableBytes());
+	}
+
+	private static void dequeued(Pending pending) {
+		ProtocolMetrics.PENDING_WRITES.decrement();
+		ProtocolMetrics.PENDING_WRITE_BYTES.add(-pending.frame.readableBytes());
+	}
+
+	private void discard(Throwable cause) {
+		for (ArrayDeque<Pending> queue : queues) {
+			Pending pending;
+			while ((pending = queue.poll()) != null) {
+				dequeued(pending);
+				pending.frame.release();
+				if (pending.promise != null) {
+					pending.promise.tryFailure(cause);
+				}
+			}
+		}
+		nonEmpty = 0;
+	}
+
+	/**
+	 * Reads type and priority from the fixed header of either version.
+	 */
+	private static int priorityClass(ByteBuf frame) {
+		int index = frame.readerIndex();
+		int crcCode = frame.getInt(index);
+		if (FrameFormat.has(crcCode, FrameFormat.DEFINES)) {
+			return CONTROL;
+		}
+		byte type;
+		byte priority;
+		if (FrameFormat.version(crcCode) == FrameFormat.VERSION_2) {
+			ByteBuf in = frame.duplicate();
+			in.skipBytes(4);
+			VarInts.readVarInt(in);
+			int flags = in.readUnsignedByte();
+			if (FrameFormat.has(flags, FrameFormat.HAS_SESSION_ID)) {
+				VarInts.readVarLong(in);
+			}
+			type = in.readByte();
+			priority = FrameFormat.has(flags, FrameFormat.HAS_PRIORITY) ? in
+					.readByte() : 0;
+		} else {
+			type = frame.getByte(index + 16);
+			priority = frame.getByte(index + 17);
+		}
+		if (type == MessageType.LOGIN_REQ.value()
+				|| type == MessageType.LOGIN_RESP.value()
+				|| type == MessageType.HEARTBEAT_REQ.value()
+				|| type == MessageType.HEARTBEAT_RESP.value()
+				|| type == MessageType.WINDOW_UPDATE.value()) {
+			return CONTROL;
+		}
+		return Math.max(0, Math.min(MAX_PRIORITY, priority));
+	}
+
+	private ProtocolSession session(ChannelHandlerContext ctx) {
+		if (session == null) {
+			session = ProtocolSession.get(ctx.channel());
+		}
+		return session;
+	}
+
+	private static final class Pending {
+		final ByteBuf frame;
+		/** Null for all but the last piece of a fragmented frame. */
+		final ChannelPromise promise;
+
+		Pending(ByteBuf frame, ChannelPromise promise) {
+			this.frame = frame;
+			this.promise = promise;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.taobao.netty.protocol.example;
+
+import com.taobao.netty.metrics.Histogram;
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.StripedCounter;
+
+/**
+ * Metrics of the private protocol in {@link Metrics#DEFAULT}, shared by
+ * all channels of the process. Per type metrics are arrays indexed by
+ * {@link MessageType#value()}; frames of unknown types only count in the
+ * totals.
+ */
+public final class ProtocolMetrics {
+
+	public static final StripedCounter BYTES_IN = Metrics.DEFAULT
+			.counter("protocol_bytes_in");
+	public static final StripedCounter BYTES_OUT = Metrics.DEFAULT
+			.counter("protocol_bytes_out");
+	/** Bytes of buffers the encoder allocated per frame. */
+	public static final Histogram ENCODE_ALLOCATED = Metrics.DEFAULT
+			.histogram("protocol_encode_allocated_bytes");
+	/** Frames waiting in {@link PriorityWriteHandler}s for the socket. */
+	public static final StripedCounter PENDING_WRITES = Metrics.DEFAULT
+			.counter("protocol_pending_writes");
+	public static final StripedCounter PENDING_WRITE_BYTES = Metrics.DEFAULT
+			.counter("protocol_pending_write_bytes");
+	/** Server channels with a logged in session. */
+	public static final StripedCounter ACTIVE_SESSIONS = Metrics.DEFAULT
+			.counter("protocol_active_sessions");
+
+	private static final StripedCounter[] FRAMES_IN = counters("protocol_frames_in");
+	private static final StripedCounter[] FRAMES_OUT = counters("protocol_frames_out");
+	private static final Histogram[] DECODE_NANOS = histograms("protocol_decode_nanos");
+	private static final Histogram[] ENCODE_NANOS = histograms("protocol_encode_nanos");
+
+	private ProtocolMetrics() {
+	}
+
+	static void decoded(byte type, long nanos) {
+		if (type >= 0 && type < FRAMES_IN.length) {
+			FRAMES_IN[type].increment();
+			DECODE_NANOS[type].record(nanos);
+		}
+	}
+
+	static void encoded(byte type, long nanos) {
+		if (type >= 0 && type < FRAMES_OUT.length) {
+			FRAMES_OUT[type].increment();
+			ENCODE_NANOS[type].record(nanos);
+		}
+	}
+
+	private static StripedCounter[] counters(String name) {
+		MessageType[] types = MessageType.values();
+		StripedCounter[] counters = new StripedCounter[types.length];
+		for (MessageType type : types) {
+			counters[type.value()] = Metrics.DEFAULT.counter(Metrics.name(name,
+					"type", type.name()));
+		}
+		return counters;
+	}
+
+	private static Histogram[] histograms(String name) {
+		MessageType[] types = MessageType.values();
+		Histogram[] histograms = new Histogram[types.length];
+		for (MessageType type : types) {
+			histograms[type.value()] = Metrics.DEFAULT.histogram(Metrics.name(
+					name, "type", type.name()));
+		}
+		return histograms;
+	}
+}
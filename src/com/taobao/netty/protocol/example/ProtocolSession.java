@@ -0,0 +1,284 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per channel state agreed on during the LOGIN_REQ/LOGIN_RESP handshake. The
+ * client lists what it supports in the LOGIN_REQ attachment, the server picks
+ * and answers in the LOGIN_RESP attachment. A peer that sends no offer, or
+ * ignores it, keeps the original JBoss format.
+ */
+public final class ProtocolSession {
+
+	private static final AttributeKey<ProtocolSession> KEY = AttributeKey
+			.valueOf("protocolSession");
+
+	static final String SERIALIZERS = "serializers";
+	static final String SERIALIZER = "serializer";
+	static final String KEYS = "keys";
+	static final String COMPRESSIONS = "compressions";
+	static final String COMPRESSION = "compression";
+	static final String VERSIONS = "versions";
+	static final String VERSION = "version";
+
+	/**
+	 * Frames whose attachments and body are smaller than this are sent
+	 * uncompressed, which keeps heartbeats and login frames cheap.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	/** Server side preference, best first. */
+	private static final byte[] SUPPORTED_SERIALIZERS = { Serializer.COMPACT,
+			Serializer.JBOSS_SESSION, Serializer.JBOSS };
+	private static final byte[] SUPPORTED_COMPRESSIONS = { Compression.SNAPPY,
+			Compression.DEFLATE };
+	private static final byte[] SUPPORTED_VERSIONS = { FrameFormat.VERSION_2,
+			FrameFormat.VERSION_1 };
+
+	/**
+	 * Attachment keys every session starts with. Applications add the keys
+	 * they use most through {@link #preloadKeys(String...)}.
+	 */
+	private static final List<String> INITIAL_KEYS = new CopyOnWriteArrayList<String>(
+			Arrays.asList(SERIALIZERS, SERIALIZER, KEYS, COMPRESSIONS,
+					COMPRESSION, VERSIONS, VERSION));
+
+	private volatile boolean established;
+	private volatile byte version = FrameFormat.VERSION_1;
+	private volatile byte serializer = Serializer.JBOSS;
+	private volatile boolean keyIds;
+	private volatile byte compressionCodec = Compression.NONE;
+	private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private final Compression compression = new Compression();
+	private List<String> initialKeys;
+	private KeyDictionary outboundKeys;
+	private KeyDictionary inboundKeys;
+
+	/**
+	 * Adds keys to the dictionary a client offers at login. Keys not listed
+	 * here still get ids when they are first sent.
+	 */
+	public static void preloadKeys(String... keys) {
+		for (String key : keys) {
+			if (!INITIAL_KEYS.contains(key)) {
+				INITIAL_KEYS.add(key);
+			}
+		}
+	}
+
+	public static ProtocolSession get(Channel channel) {
+		Attribute<ProtocolSession> attr = channel.attr(KEY);
+		ProtocolSession session = attr.get();
+		if (session == null) {
+			ProtocolSession newSession = new ProtocolSession();
+			session = attr.setIfAbsent(newSession);
+			if (session == null) {
+				session = newSession;
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Whether the login handshake completed successfully.
+	 */
+	public boolean isEstablished() {
+		return established;
+	}
+
+	/**
+	 * Header version of outgoing frames. Incoming frames are read in whatever
+	 * version their crcCode announces, so a client always logs in with
+	 * version 1 and the server keeps serving version 1 clients.
+	 */
+	public byte getVersion() {
+		return version;
+	}
+
+	public byte getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * Whether outgoing frames write attachment keys as dictionary ids.
+	 */
+	public boolean isKeyIds() {
+		return keyIds;
+	}
+
+	/**
+	 * Codec used for outgoing frames, {@link Compression#NONE} if none was
+	 * agreed on.
+	 */
+	public byte getCompressionCodec() {
+		return compressionCodec;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Codec state and statistics of this session.
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Dictionary for keys this side sends. Only used by the encoder.
+	 */
+	KeyDictionary outboundKeys() {
+		if (outboundKeys == null) {
+			outboundKeys = new KeyDictionary(initialKeys);
+		}
+		return outboundKeys;
+	}
+
+	/**
+	 * Dictionary for keys the peer sends, or null if none was agreed on.
+	 */
+	synchronized KeyDictionary inboundKeys() {
+		if (inboundKeys == null && initialKeys != null) {
+			inboundKeys = new KeyDictionary(initialKeys);
+		}
+		return inboundKeys;
+	}
+
+	/**
+	 * Client side: adds the supported options to a LOGIN_REQ header.
+	 */
+	public void offer(Header loginReq) {
+		loginReq.getAttachment().put(SERIALIZERS, SUPPORTED_SERIALIZERS.clone());
+		List<String> keys = new ArrayList<String>(INITIAL_KEYS);
+		loginReq.getAttachment().put(KEYS, keys);
+		initialKeys(keys);
+		loginReq.getAttachment().put(COMPRESSIONS,
+				SUPPORTED_COMPRESSIONS.clone());
+		loginReq.getAttachment().put(VERSIONS, SUPPORTED_VERSIONS.clone());
+	}
+
+	/**
+	 * Server side: picks from the offer in {@code loginReq}, applies the choice
+	 * to this session and records it in {@code loginResp}.
+	 */
+	public void accept(Header loginReq, Header loginResp) {
+		Object offered = loginReq.getAttachment().get(SERIALIZERS);
+		if (offered instanceof byte[]) {
+			byte[] ids = (byte[]) offered;
+			for (byte preferred : SUPPORTED_SERIALIZERS) {
+				if (contains(ids, preferred)) {
+					serializer = preferred;
+					break;
+				}
+			}
+			loginResp.getAttachment().put(SERIALIZER, serializer);
+		}
+		acceptKeys(loginReq, loginResp);
+		offered = loginReq.getAttachment().get(COMPRESSIONS);
+		if (offered instanceof byte[]) {
+			byte[] codecs = (byte[]) offered;
+			for (byte preferred : SUPPORTED_COMPRESSIONS) {
+				if (contains(codecs, preferred)) {
+					compressionCodec = preferred;
+					break;
+				}
+			}
+			loginResp.getAttachment().put(COMPRESSION, compressionCodec);
+		}
+		offered = loginReq.getAttachment().get(VERSIONS);
+		if (offered instanceof byte[]) {
+			byte[] versions = (byte[]) offered;
+			for (byte preferred : SUPPORTED_VERSIONS) {
+				if (contains(versions, preferred)) {
+					version = preferred;
+					break;
+				}
+			}
+			loginResp.getAttachment().put(VERSION, version);
+		}
+		established = true;
+	}
+
+	/**
+	 * Server side: takes over the choices made for an earlier session of the
+	 * same client instead of picking from the offer, and records them in
+	 * {@code loginResp} like {@link #accept(Header, Header)}. The key
+	 * dictionaries start over from the keys in {@code loginReq}, since frames
+	 * in flight when the old channel closed leave them out of step.
+	 */
+	public void resume(ProtocolSession previous, Header loginReq,
+			Header loginResp) {
+		serializer = previous.serializer;
+		loginResp.getAttachment().put(SERIALIZER, serializer);
+		acceptKeys(loginReq, loginResp);
+		compressionCodec = previous.compressionCodec;
+		compressionThreshold = previous.compressionThreshold;
+		loginResp.getAttachment().put(COMPRESSION, compressionCodec);
+		version = previous.version;
+		loginResp.getAttachment().put(VERSION, version);
+		established = true;
+	}
+
+	private void acceptKeys(Header loginReq, Header loginResp) {
+		Object keys = loginReq.getAttachment().get(KEYS);
+		if (keys instanceof List) {
+			List<String> initial = new ArrayList<String>();
+			for (Object key : (List<?>) keys) {
+				initial.add((String) key);
+			}
+			initialKeys(initial);
+			keyIds = true;
+			loginResp.getAttachment().put(KEYS, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Client side: applies the choices the server made in a successful
+	 * LOGIN_RESP.
+	 */
+	public void apply(Header loginResp) {
+		Object chosen = loginResp.getAttachment().get(SERIALIZER);
+		if (chosen instanceof Byte) {
+			serializer = (Byte) chosen;
+		}
+		if (Boolean.TRUE.equals(loginResp.getAttachment().get(KEYS))) {
+			keyIds = true;
+		}
+		chosen = loginResp.getAttachment().get(COMPRESSION);
+		if (chosen instanceof Byte && Compression.isSupported((Byte) chosen)) {
+			compressionCodec = (Byte) chosen;
+		}
+		chosen = loginResp.getAttachment().get(VERSION);
+		if (chosen instanceof Byte && contains(SUPPORTED_VERSIONS, (Byte) chosen)) {
+			version = (Byte) chosen;
+		}
+		established = true;
+	}
+
+	private synchronized void initialKeys(List<String> keys) {
+		initialKeys = keys;
+		outboundKeys = null;
+		inboundKeys = null;
+	}
+
+	private static boolean contains(byte[] ids, byte id) {
+		for (byte b : ids) {
+			if (b == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,49 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Turns attachment values and message bodies into bytes and back. The id of
+ * the serializer that wrote a frame is carried in the low bits of the frame's
+ * crcCode, so the receiving side always knows how to read it.
+ *
+ * Implementations keep per-stream state and are not thread safe; every
+ * channel owns its own instances.
+ */
+public interface Serializer {
+
+	/** JBoss "serial" marshalling, the original wire format. */
+	byte JBOSS = 1;
+
+	/** Tag based binary format, see {@link CompactSerializer}. */
+	byte COMPACT = 2;
+
+	/**
+	 * JBoss marshalling that remembers class descriptors and short strings for
+	 * the whole session, see {@link SessionJbossSerializer}.
+	 */
+	byte JBOSS_SESSION = 3;
+
+	byte id();
+
+	void serialize(Object obj, ByteBuf out) throws Exception;
+
+	/**
+	 * Reads one object. {@code in} holds exactly the bytes written by
+	 * {@link #serialize(Object, ByteBuf)}.
+	 */
+	Object deserialize(ByteBuf in) throws Exception;
+
+	/**
+	 * Returns true if objects serialized since the last call added entries to
+	 * state the peer keeps for the session, and starts over. Frames carrying
+	 * such entries must be decoded in the order they arrive.
+	 */
+	boolean takeDefinitions();
+
+	/**
+	 * Forgets the entries added since the last {@link #takeDefinitions()},
+	 * because the frame carrying them is not going to be sent.
+	 */
+	void dropDefinitions();
+}
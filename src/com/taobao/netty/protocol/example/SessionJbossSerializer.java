@@ -0,0 +1,41 @@
+package com.taobao.netty.protocol.example;
+
+import java.io.IOException;
+
+/**
+ * {@link JbossSerializer} that remembers class descriptors and short strings
+ * for the whole session through {@link SessionTables}, so a type costs a full
+ * descriptor only the first time it crosses the channel. Objects are still
+ * written as separate streams, so a frame that defines nothing can be decoded
+ * on its own.
+ */
+public class SessionJbossSerializer extends JbossSerializer {
+
+	private final SessionTables tables;
+
+	public SessionJbossSerializer() throws IOException {
+		this(new SessionTables());
+	}
+
+	private SessionJbossSerializer(SessionTables tables) throws IOException {
+		super(MarshallingCodecFactory.buildMarshalling(tables.classTable(),
+				tables.objectTable()), MarshallingCodecFactory
+				.buildUnMarshalling(tables.classTable(), tables.objectTable()));
+		this.tables = tables;
+	}
+
+	@Override
+	public byte id() {
+		return JBOSS_SESSION;
+	}
+
+	@Override
+	public boolean takeDefinitions() {
+		return tables.takeDefinitions();
+	}
+
+	@Override
+	public void dropDefinitions() {
+		tables.dropDefinitions();
+	}
+}
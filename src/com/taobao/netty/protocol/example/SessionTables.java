@@ -0,0 +1,242 @@
+package com.taobao.netty.protocol.example;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.marshalling.ClassTable;
+import org.jboss.marshalling.Marshaller;
+import org.jboss.marshalling.ObjectTable;
+import org.jboss.marshalling.Unmarshaller;
+
+/**
+ * Class and string tables kept for the life of a session. JBoss marshalling
+ * consults them before writing a class descriptor or an object: the first
+ * time a class or a short string crosses the channel it is defined in band,
+ * after that it is written as one varint:
+ *
+ * <pre>
+ * id &lt;&lt; 1        reference to a known entry
+ * id &lt;&lt; 1 | 1    definition, followed by the class name or the string
+ * </pre>
+ *
+ * An instance either writes or reads. The writing side is used from the
+ * channel's event loop, the reading side under the decoder's lock, and frames
+ * with definitions are decoded in order, so neither needs more locking.
+ */
+final class SessionTables {
+
+	static final int MAX_CLASSES = 1024;
+	static final int MAX_STRINGS = 4096;
+	/** Longer strings are not worth remembering. */
+	static final int MAX_STRING_LENGTH = 64;
+
+	private final Table<Class<?>> classes = new Table<Class<?>>(MAX_CLASSES);
+	private final Table<String> strings = new Table<String>(MAX_STRINGS);
+
+	private final ClassTable classTable = new ClassTable() {
+
+		private final Writer writer = new Writer() {
+			@Override
+			public void writeClass(Marshaller marshaller, Class<?> clazz)
+					throws IOException {
+				if (classes.write(clazz, marshaller)) {
+					marshaller.writeUTF(clazz.getName());
+				}
+			}
+		};
+
+		@Override
+		public Writer getClassWriter(Class<?> clazz) {
+			if (clazz.isPrimitive() || !classes.canWrite(clazz)) {
+				return null;
+			}
+			return writer;
+		}
+
+		@Override
+		public Class<?> readClass(Unmarshaller unmarshaller)
+				throws IOException, ClassNotFoundException {
+			int value = readVarInt(unmarshaller);
+			if ((value & 1) == 0) {
+				return classes.get(value >>> 1);
+			}
+			String name = unmarshaller.readUTF();
+			Class<?> clazz = classes.defined(value >>> 1);
+			if (clazz == null) {
+				clazz = Class.forName(name, false, classLoader());
+				classes.define(clazz);
+			}
+			return clazz;
+		}
+	};
+
+	private final ObjectTable objectTable = new ObjectTable() {
+
+		private final Writer writer = new Writer() {
+			@Override
+			public void writeObject(Marshaller marshaller, Object object)
+					throws IOException {
+				if (strings.write((String) object, marshaller)) {
+					marshaller.writeUTF((String) object);
+				}
+			}
+		};
+
+		@Override
+		public Writer getObjectWriter(Object object) {
+			if (object instanceof String
+					&& ((String) object).length() <= MAX_STRING_LENGTH
+					&& strings.canWrite((String) object)) {
+				return writer;
+			}
+			return null;
+		}
+
+		@Override
+		public Object readObject(Unmarshaller unmarshaller) throws IOException {
+			int value = readVarInt(unmarshaller);
+			if ((value & 1) == 0) {
+				return strings.get(value >>> 1);
+			}
+			String string = unmarshaller.readUTF();
+			String known = strings.defined(value >>> 1);
+			if (known != null) {
+				return known;
+			}
+			strings.define(string);
+			return string;
+		}
+	};
+
+	ClassTable classTable() {
+		return classTable;
+	}
+
+	ObjectTable objectTable() {
+		return objectTable;
+	}
+
+	/**
+	 * See {@link Serializer#takeDefinitions()}.
+	 */
+	boolean takeDefinitions() {
+		boolean classesAdded = classes.take();
+		return strings.take() | classesAdded;
+	}
+
+	/**
+	 * See {@link Serializer#dropDefinitions()}.
+	 */
+	void dropDefinitions() {
+		classes.drop();
+		strings.drop();
+	}
+
+	private static ClassLoader classLoader() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return loader != null ? loader : SessionTables.class.getClassLoader();
+	}
+
+	private static void writeVarInt(DataOutput out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("malformed varint");
+	}
+
+	/**
+	 * Entries in definition order, plus the reverse index on the writing
+	 * side. Entries added since the last {@link #take()} can be dropped again.
+	 */
+	private static final class Table<T> {
+
+		private final int max;
+		private final List<T> entries = new ArrayList<T>();
+		private final Map<T, Integer> ids = new HashMap<T, Integer>();
+		private int added;
+
+		Table(int max) {
+			this.max = max;
+		}
+
+		boolean canWrite(T entry) {
+			return entries.size() < max || ids.containsKey(entry);
+		}
+
+		/**
+		 * Writes the entry's id and returns true if it is new, in which case
+		 * the caller writes its value.
+		 */
+		boolean write(T entry, DataOutput out) throws IOException {
+			Integer id = ids.get(entry);
+			if (id != null) {
+				writeVarInt(out, id << 1);
+				return false;
+			}
+			writeVarInt(out, entries.size() << 1 | 1);
+			ids.put(entry, entries.size());
+			entries.add(entry);
+			added++;
+			return true;
+		}
+
+		T get(int id) throws IOException {
+			if (id >= entries.size()) {
+				throw new StreamCorruptedException("unknown table entry: " + id);
+			}
+			return entries.get(id);
+		}
+
+		/**
+		 * Returns the entry a definition refers to if it was read before, so
+		 * that reading a frame twice is harmless.
+		 */
+		T defined(int id) throws IOException {
+			if (id < entries.size()) {
+				return entries.get(id);
+			}
+			if (id != entries.size() || id >= max) {
+				throw new StreamCorruptedException(
+						"unexpected table definition: " + id);
+			}
+			return null;
+		}
+
+		void define(T entry) {
+			entries.add(entry);
+		}
+
+		boolean take() {
+			boolean any = added > 0;
+			added = 0;
+			return any;
+		}
+
+		void drop() {
+			while (added > 0) {
+				ids.remove(entries.remove(entries.size() - 1));
+				added--;
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.taobao.netty.protocol.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Base 128 varint helpers, seven bits per byte with the high bit set on every
+ * byte but the last. Signed values go through zig-zag encoding first so small
+ * negative numbers stay short.
+ */
+final class VarInts {
+
+	private VarInts() {
+	}
+
+	static void writeVarInt(ByteBuf out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(ByteBuf in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new CorruptedFrameException("malformed varint");
+	}
+
+	static void writeVarLong(ByteBuf out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(ByteBuf in) {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new CorruptedFrameException("malformed varint");
+	}
+
+	static int sizeOfVarInt(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,150 @@
+package com.taobao.netty.protocol.example.client;
+
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One server a {@link NettyClient} may connect to, with the health numbers
+ * used to choose between servers: connect time and heartbeat round trip as
+ * moving averages, and an error count that fades with a half life of
+ * {@link #ERROR_HALF_LIFE_MILLIS}. Connect failures, refused logins and
+ * lost connections also push the next attempt back, exponentially with
+ * jitter. The failure count only starts over once a session has stayed up
+ * for {@link #STABLE_SESSION_MILLIS}, so a server that accepts the login and
+ * then drops the session at once is backed off like one that refuses it.
+ *
+ * Updated from the event loops of all connections to the server, so the
+ * methods are synchronized; they run a few times per connection and
+ * heartbeat at most.
+ */
+public final class Endpoint {
+
+	static final AttributeKey<Endpoint> KEY = AttributeKey.valueOf("endpoint");
+
+	static final long ERROR_HALF_LIFE_MILLIS = 30000;
+	/** Score added per recent error, in milliseconds of latency. */
+	private static final double ERROR_PENALTY_MILLIS = 1000;
+	private static final long BASE_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+	static final long STABLE_SESSION_MILLIS = 10000;
+	/** Weight of a new sample in the moving averages. */
+	private static final double ALPHA = 0.3;
+	private static final Random JITTER = new Random();
+
+	private final InetSocketAddress address;
+	private double connectMillis;
+	private double rttMillis;
+	private double errors;
+	private long errorsUpdatedAt;
+	private int consecutiveFailures;
+	private long nextAttemptAt;
+	private long establishedAt;
+
+	public Endpoint(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Lower is better: expected latency in milliseconds plus a penalty for
+	 * recent errors.
+	 */
+	public synchronized double score() {
+		return connectMillis + rttMillis + ERROR_PENALTY_MILLIS
+				* errors(System.currentTimeMillis());
+	}
+
+	synchronized boolean isAvailable(long now) {
+		return now >= nextAttemptAt;
+	}
+
+	synchronized long nextAttemptAt() {
+		return nextAttemptAt;
+	}
+
+	/**
+	 * Records the time a TCP connect took. The connection does not count as
+	 * a success before the login, see {@link #established()}.
+	 */
+	synchronized void connected(long nanos) {
+		connectMillis = average(connectMillis, TimeUnit.NANOSECONDS
+				.toMicros(nanos) / 1000.0);
+	}
+
+	/**
+	 * Records a successful login.
+	 */
+	synchronized void established() {
+		establishedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records a failed connect or login and backs off: 100 ms doubled per
+	 * consecutive failure up to 30 s, times a random factor between 0.5 and
+	 * 1.5.
+	 */
+	synchronized void connectFailed() {
+		long now = System.currentTimeMillis();
+		addError(now);
+		backOff(now);
+	}
+
+	/**
+	 * Records a connection lost while in use. A session that lasted
+	 * {@link #STABLE_SESSION_MILLIS} clears the failure count first, so the
+	 * next connect waits about the base backoff; one that did not counts as
+	 * another failure.
+	 */
+	synchronized void connectionLost() {
+		long now = System.currentTimeMillis();
+		addError(now);
+		if (now - establishedAt >= STABLE_SESSION_MILLIS) {
+			consecutiveFailures = 0;
+		}
+		backOff(now);
+	}
+
+	synchronized void heartbeatRtt(long nanos) {
+		rttMillis = average(rttMillis, TimeUnit.NANOSECONDS.toMicros(nanos)
+				/ 1000.0);
+	}
+
+	private void backOff(long now) {
+		long backoff = Math.min(MAX_BACKOFF_MILLIS,
+				BASE_BACKOFF_MILLIS << Math.min(consecutiveFailures, 20));
+		consecutiveFailures++;
+		nextAttemptAt = now + (long) (backoff * (0.5 + JITTER.nextDouble()));
+	}
+
+	private void addError(long now) {
+		errors = errors(now) + 1;
+		errorsUpdatedAt = now;
+	}
+
+	private double errors(long now) {
+		if (errors == 0) {
+			return 0;
+		}
+		return errors
+				* Math.pow(0.5, (double) (now - errorsUpdatedAt)
+						/ ERROR_HALF_LIFE_MILLIS);
+	}
+
+	private static double average(double average, double sample) {
+		return average == 0 ? sample : average + ALPHA * (sample - average);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Endpoint [address=" + address + ", score=" + score()
+				+ ", connectMillis=" + connectMillis + ", rttMillis="
+				+ rttMillis + ", errors=" + errors(System.currentTimeMillis())
+				+ "]";
+	}
+}
@@ -2,17 +2,24 @@ package com.taobao.netty.protocol.example.client;
 
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
 
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-
-import com.taobao.netty.protocol.example.Header;
+import com.taobao.netty.protocol.example.LivenessHandler;
 import com.taobao.netty.protocol.example.MessageType;
 import com.taobao.netty.protocol.example.NettyMessage;
+import com.taobao.netty.protocol.example.NettyMessageEncoder;
+import com.taobao.netty.protocol.example.ProtocolSession;
 
+/**
+ * Sends a heartbeat when {@link LivenessHandler} reports the channel idle, so
+ * a busy channel sends none.
+ */
 public class HeartBeatReqHandler extends ChannelHandlerAdapter {
 
-	private volatile ScheduledFuture<?> heartBeat;
+	private boolean loggedIn;
+	/** When the unanswered heart beat was sent, 0 if none is. */
+	private long sentAt;
 
 	@Override
 	public void channelRead(ChannelHandlerContext ctx, Object msg)
@@ -21,43 +28,39 @@ public class HeartBeatReqHandler extends ChannelHandlerAdapter {
 		if (message.getHeader() != null
 				&& message.getHeader().getType() == MessageType.LOGIN_RESP
 						.value()) {
-			heartBeat = ctx.executor().scheduleAtFixedRate(
-					new HeartBeatReqHandler.HeartBeatTask(ctx), 0, 5000,
-					TimeUnit.MILLISECONDS);
+			loggedIn = true;
+			ctx.fireChannelRead(msg);
 		} else if (message.getHeader() != null
 				&& message.getHeader().getType() == MessageType.HEARTBEAT_RESP
 						.value()) {
-			System.out
-					.println("Client receive server heart beat message : ---> "
-							+ message);
+			if (sentAt != 0) {
+				Endpoint endpoint = ctx.channel().attr(Endpoint.KEY).get();
+				if (endpoint != null) {
+					endpoint.heartbeatRtt(System.nanoTime() - sentAt);
+				}
+				sentAt = 0;
+			}
+			ReferenceCountUtil.release(msg);
 		} else {
 			ctx.fireChannelRead(msg);
 		}
 
 	}
 
-	private class HeartBeatTask implements Runnable {
-		private final ChannelHandlerContext ctx;
-
-		public HeartBeatTask(final ChannelHandlerContext ctx) {
-			this.ctx = ctx;
-		}
-
-		@Override
-		public void run() {
-			NettyMessage heatBeat = buildHeatBeat();
-			System.out
-					.println("Client send heart beat messsage to server : ---> "
-							+ heatBeat);
-			ctx.writeAndFlush(heatBeat);
-		}
-
-		private NettyMessage buildHeatBeat() {
-			NettyMessage message = new NettyMessage();
-			Header header = new Header();
-			header.setType(MessageType.HEARTBEAT_REQ.value());
-			message.setHeader(header);
-			return message;
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+			throws Exception {
+		if (evt instanceof IdleStateEvent) {
+			if (loggedIn) {
+				if (sentAt == 0) {
+					sentAt = System.nanoTime();
+				}
+				ctx.writeAndFlush(NettyMessageEncoder.typeOnlyFrame(
+						ProtocolSession.get(ctx.channel()),
+						MessageType.HEARTBEAT_REQ));
+			}
+		} else {
+			ctx.fireUserEventTriggered(evt);
 		}
 	}
 
@@ -65,10 +68,6 @@ public class HeartBeatReqHandler extends ChannelHandlerAdapter {
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
 			throws Exception {
 		cause.printStackTrace();
-		if (heartBeat != null) {
-			heartBeat.cancel(true);
-			heartBeat = null;
-		}
 		ctx.fireExceptionCaught(cause);
 	}
 }
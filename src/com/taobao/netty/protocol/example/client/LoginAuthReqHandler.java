@@ -1,16 +1,22 @@
 package com.taobao.netty.protocol.example.client;
 
+import com.taobao.netty.metrics.SampledLog;
 import com.taobao.netty.protocol.example.Header;
 import com.taobao.netty.protocol.example.MessageType;
+import com.taobao.netty.protocol.example.NettyConstant;
 import com.taobao.netty.protocol.example.NettyMessage;
+import com.taobao.netty.protocol.example.ProtocolSession;
 
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCountUtil;
 
 public class LoginAuthReqHandler extends ChannelHandlerAdapter {
 
+	private static final SampledLog LOG = new SampledLog(10);
+
 	/**
 	 * Calls {@link ChannelHandlerContext#fireChannelActive()} to forward to the
 	 * next {@link ChannelHandler} in the {@link ChannelPipeline}.
@@ -19,7 +25,17 @@ public class LoginAuthReqHandler extends ChannelHandlerAdapter {
 	 */
 	@Override
 	public void channelActive(ChannelHandlerContext ctx) throws Exception {
-		ctx.writeAndFlush(buildLoginReq());
+		NettyMessage loginReq = buildLoginReq();
+		ProtocolSession.get(ctx.channel()).offer(loginReq.getHeader());
+		SessionTicket ticket = ctx.channel().attr(SessionTicket.KEY).get();
+		if (ticket != null) {
+			long[] resume = ticket.resumeAt(ctx.channel().remoteAddress());
+			if (resume != null) {
+				loginReq.getHeader().getAttachment()
+						.put(NettyConstant.RESUME_SESSION, resume);
+			}
+		}
+		ctx.writeAndFlush(loginReq);
 	}
 
 	/**
@@ -37,10 +53,28 @@ public class LoginAuthReqHandler extends ChannelHandlerAdapter {
 				&& message.getHeader().getType() == MessageType.LOGIN_RESP
 						.value()) {
 			byte loginResult = (Byte) message.getBody();
+			SessionTicket ticket = ctx.channel().attr(SessionTicket.KEY).get();
 			if (loginResult != (byte) 0) {
+				if (ticket != null) {
+					ticket.clear();
+				}
+				ReferenceCountUtil.release(msg);
 				ctx.close();
 			} else {
-				System.out.println("Login is ok : " + message);
+				ProtocolSession.get(ctx.channel()).apply(message.getHeader());
+				Endpoint endpoint = ctx.channel().attr(Endpoint.KEY).get();
+				if (endpoint != null) {
+					endpoint.established();
+				}
+				Object token = message.getHeader().getAttachment()
+						.get(NettyConstant.SESSION_TOKEN);
+				if (ticket != null && token instanceof Long) {
+					ticket.issued(ctx.channel().remoteAddress(), message
+							.getHeader().getSessionID(), (Long) token);
+				}
+				if (LOG.sample()) {
+					LOG.log("Login is ok : " + message);
+				}
 				ctx.fireChannelRead(msg);
 			}
 		} else
@@ -1,73 +1,266 @@
 package com.taobao.netty.protocol.example.client;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.Future;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.taobao.netty.protocol.example.LivenessHandler;
 import com.taobao.netty.protocol.example.NettyConstant;
 import com.taobao.netty.protocol.example.NettyMessageDecoder;
 import com.taobao.netty.protocol.example.NettyMessageEncoder;
+import com.taobao.netty.protocol.example.PriorityWriteHandler;
+import com.taobao.netty.protocol.example.ProtocolSession;
 
 public class NettyClient {
 
-	private ScheduledExecutorService executor = Executors
-			.newScheduledThreadPool(1);
+	/** Gives up on a server that does not accept within this time. */
+	private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+	private static final long READ_TIMEOUT_MILLIS = 50000;
+	/** Heartbeat after this long without a read or without a write. */
+	private static final long HEARTBEAT_INTERVAL_MILLIS = 5000;
+	/**
+	 * Added to the load of a member whose outbound buffer is full or whose
+	 * send window is used up.
+	 */
+	private static final int UNWRITABLE_PENALTY = 1 << 16;
+	private static final int WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+	private static final int WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
 	EventLoopGroup group = new NioEventLoopGroup();
+	private volatile Endpoint[] endpoints;
+	/** One slot per connection, null while it is replaced. */
+	private final AtomicReferenceArray<Channel> members;
+	/** Per slot, lets a replacement connection resume the session. */
+	private final SessionTicket[] tickets;
+	private volatile boolean closed;
 
+	public NettyClient() {
+		this(1);
+	}
+
+	/**
+	 * Creates a client keeping {@code poolSize} connections, see
+	 * {@link #start(InetSocketAddress...)}.
+	 */
+	public NettyClient(int poolSize) {
+		members = new AtomicReferenceArray<Channel>(poolSize);
+		tickets = new SessionTicket[poolSize];
+		for (int i = 0; i < poolSize; i++) {
+			tickets[i] = new SessionTicket();
+		}
+	}
+
+	/**
+	 * Starts the client and blocks until it is closed, reconnecting whenever
+	 * the connection drops.
+	 */
 	public void connect(int port, String host) throws Exception {
-		try {
-			Bootstrap b = new Bootstrap();
-			b.group(group).channel(NioSocketChannel.class)
-					.option(ChannelOption.TCP_NODELAY, true)
-					.handler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						public void initChannel(SocketChannel ch)
-								throws Exception {
-							ch.pipeline().addLast(
-									new NettyMessageDecoder(1024 * 1024, 4, 4));
-							ch.pipeline().addLast("MessageEncoder",
-									new NettyMessageEncoder());
-							ch.pipeline().addLast("readTimeoutHandler",
-									new ReadTimeoutHandler(50));
-							ch.pipeline().addLast("LoginAuthHandler",
-									new LoginAuthReqHandler());
-							ch.pipeline().addLast("HeartBeatHandler",
-									new HeartBeatReqHandler());
-						}
-					});
-			ChannelFuture future = b.connect(
-					new InetSocketAddress(host, port),
-					new InetSocketAddress(NettyConstant.LOCALIP,
-							NettyConstant.LOCAL_PORT)).sync();
-			future.channel().closeFuture().sync();
-		} finally {
-			executor.execute(new Runnable() {
+		start(port, host);
+		group.terminationFuture().sync();
+	}
+
+	public void start(int port, String host) {
+		start(new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Opens one connection per slot and returns at once. The connections are
+	 * spread over the event loops of this client and each logs in on its own.
+	 *
+	 * Every connection goes to the available server with the best
+	 * {@link Endpoint#score()}. One that closes is replaced at once, from its
+	 * event loop, by a connection to the best server then; a server that
+	 * refuses connections or logins is not tried again until its backoff has
+	 * passed. A replacement that reaches the same server resumes the session
+	 * of the connection it replaces, see {@link SessionTicket}.
+	 */
+	public void start(InetSocketAddress... addresses) {
+		if (addresses.length == 0) {
+			throw new IllegalArgumentException("no endpoints");
+		}
+		Endpoint[] endpoints = new Endpoint[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			endpoints[i] = new Endpoint(addresses[i]);
+		}
+		this.endpoints = endpoints;
+		Bootstrap b = bootstrap();
+		for (int i = 0; i < members.length(); i++) {
+			connectMember(b, i, group.next());
+		}
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return Collections.unmodifiableList(Arrays.asList(endpoints));
+	}
+
+	private void connectMember(final Bootstrap b, final int slot,
+			final EventLoop loop) {
+		if (closed) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		final Endpoint endpoint = choose(now);
+		if (endpoint == null) {
+			long retryAt = Long.MAX_VALUE;
+			for (Endpoint e : endpoints) {
+				retryAt = Math.min(retryAt, e.nextAttemptAt());
+			}
+			loop.schedule(new Runnable() {
 				@Override
 				public void run() {
-					try {
-						TimeUnit.SECONDS.sleep(10);
-						try {
-							connect(NettyConstant.PORT, NettyConstant.REMOTEIP);
-						} catch (Exception e) {
-							e.printStackTrace();
+					connectMember(b, slot, loop);
+				}
+			}, Math.max(0, retryAt - now), TimeUnit.MILLISECONDS);
+			return;
+		}
+		final long startedAt = System.nanoTime();
+		b.clone().attr(Endpoint.KEY, endpoint)
+				.attr(SessionTicket.KEY, tickets[slot])
+				.connect(endpoint.getAddress()).addListener(
+				new ChannelFutureListener() {
+					@Override
+					public void operationComplete(ChannelFuture future) {
+						final Channel ch = future.channel();
+						if (!future.isSuccess()) {
+							endpoint.connectFailed();
+							connectMember(b, slot, ch.eventLoop());
+							return;
 						}
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+						endpoint.connected(System.nanoTime() - startedAt);
+						members.set(slot, ch);
+						ch.closeFuture().addListener(new ChannelFutureListener() {
+							@Override
+							public void operationComplete(ChannelFuture future) {
+								members.compareAndSet(slot, ch, null);
+								if (closed) {
+									return;
+								}
+								if (ProtocolSession.get(ch).isEstablished()) {
+									endpoint.connectionLost();
+								} else {
+									endpoint.connectFailed();
+								}
+								connectMember(b, slot, ch.eventLoop());
+							}
+						});
 					}
-				}
-			});
+				});
+	}
+
+	/**
+	 * Returns the server with the best score among those not backing off,
+	 * or null if all are.
+	 */
+	private Endpoint choose(long now) {
+		Endpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (Endpoint endpoint : endpoints) {
+			if (!endpoint.isAvailable(now)) {
+				continue;
+			}
+			double score = endpoint.score();
+			if (score < bestScore) {
+				best = endpoint;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Closes all connections and stops replacing them.
+	 */
+	public void close() {
+		closed = true;
+		group.shutdownGracefully();
+	}
+
+	/**
+	 * Sends a SERVICE_REQ on the logged in connection with the fewest
+	 * outstanding requests, see {@link ServiceReqHandler#call(Object, long)}.
+	 */
+	public Future<Object> call(Object body, long timeoutMillis) {
+		Channel ch = select();
+		if (ch == null) {
+			throw new IllegalStateException("not connected");
 		}
+		return ch.pipeline().get(ServiceReqHandler.class).call(body,
+				timeoutMillis);
+	}
+
+	private Channel select() {
+		Channel best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		for (int i = 0; i < members.length(); i++) {
+			Channel ch = members.get(i);
+			if (ch == null || !ProtocolSession.get(ch).isEstablished()) {
+				continue;
+			}
+			ServiceReqHandler handler = ch.pipeline().get(
+					ServiceReqHandler.class);
+			if (handler == null) {
+				continue;
+			}
+			int load = handler.outstanding()
+					+ (ch.isWritable() && handler.sendWindow() > 0 ? 0
+							: UNWRITABLE_PENALTY);
+			if (load < bestLoad) {
+				best = ch;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	private Bootstrap bootstrap() {
+		Bootstrap b = new Bootstrap();
+		b.group(group).channel(NioSocketChannel.class)
+				.option(ChannelOption.TCP_NODELAY, true)
+				.option(ChannelOption.ALLOCATOR,
+						PooledByteBufAllocator.DEFAULT)
+				.option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK,
+						WRITE_BUFFER_HIGH_WATER_MARK)
+				.option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK,
+						WRITE_BUFFER_LOW_WATER_MARK)
+				.handler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					public void initChannel(SocketChannel ch)
+							throws Exception {
+						ch.pipeline().addLast(
+								new NettyMessageDecoder(1024 * 1024, 4, 4, true));
+						ch.pipeline().addLast("PriorityWriteHandler",
+								new PriorityWriteHandler());
+						ch.pipeline().addLast("MessageEncoder",
+								new NettyMessageEncoder());
+						ch.pipeline().addLast("LivenessHandler",
+								new LivenessHandler(READ_TIMEOUT_MILLIS,
+										HEARTBEAT_INTERVAL_MILLIS));
+						ch.pipeline().addLast("LoginAuthHandler",
+								new LoginAuthReqHandler());
+						ch.pipeline().addLast("HeartBeatHandler",
+								new HeartBeatReqHandler());
+						ch.pipeline().addLast("ServiceHandler",
+								new ServiceReqHandler());
+					}
+				});
+		return b;
 	}
 
 	/**
@@ -0,0 +1,250 @@
+package com.taobao.netty.protocol.example.client;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.taobao.netty.protocol.example.Header;
+import com.taobao.netty.protocol.example.MessageType;
+import com.taobao.netty.protocol.example.NettyConstant;
+import com.taobao.netty.protocol.example.NettyMessage;
+
+/**
+ * Sends SERVICE_REQ messages and completes their futures when the matching
+ * SERVICE_RESP arrives, so any number of requests can be in flight on one
+ * channel. Requests are numbered per channel and the numbers travel in
+ * {@link Header#getRequestID()}.
+ *
+ * The table of pending requests is only touched from the channel's event
+ * loop and needs no locking. Timeouts of all channels share one
+ * {@link HashedWheelTimer}.
+ *
+ * Requests are sent against the receive window the server advertised at
+ * login: each takes one credit and WINDOW_UPDATE messages give credit back.
+ * A call made without credit fails at once, so callers cannot pile up
+ * requests the server would not take. Without a window in the LOGIN_RESP
+ * there is no limit; before the LOGIN_RESP no call can be made.
+ */
+public class ServiceReqHandler extends ChannelHandlerAdapter {
+
+	private static final HashedWheelTimer TIMER = new HashedWheelTimer(
+			new DefaultThreadFactory("service-timeout", true), 10,
+			TimeUnit.MILLISECONDS);
+
+	private final Map<Long, Call> pending = new HashMap<Long, Call>();
+	private long lastRequestID;
+	/** Calls made and not completed yet, readable from any thread. */
+	private final AtomicInteger outstanding = new AtomicInteger();
+	/** Requests the server takes before the next WINDOW_UPDATE. */
+	private final AtomicInteger sendWindow = new AtomicInteger();
+	private volatile ChannelHandlerContext ctx;
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	/**
+	 * Sends {@code body} as a SERVICE_REQ. The returned future completes with
+	 * the body of the response, or fails if the response reports an error,
+	 * the channel closes or no response arrives within
+	 * {@code timeoutMillis}. It fails with a
+	 * {@link RejectedExecutionException} at once if the send window is used
+	 * up.
+	 */
+	public Future<Object> call(Object body, long timeoutMillis) {
+		return call(body, (byte) 0, timeoutMillis);
+	}
+
+	/**
+	 * Like {@link #call(Object, long)}, with a {@link Header#getPriority()}
+	 * for request and response.
+	 */
+	public Future<Object> call(Object body, byte priority, long timeoutMillis) {
+		EventExecutor executor = ctx.executor();
+		if (!takeCredit()) {
+			return executor.newFailedFuture(new RejectedExecutionException(
+					"send window of " + ctx.channel() + " used up"));
+		}
+		final Call call = new Call(body, priority, timeoutMillis, executor
+				.<Object> newPromise());
+		outstanding.incrementAndGet();
+		call.result.addListener(new GenericFutureListener<Future<Object>>() {
+			@Override
+			public void operationComplete(Future<Object> future) {
+				outstanding.decrementAndGet();
+			}
+		});
+		if (executor.inEventLoop()) {
+			send(call);
+		} else {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					send(call);
+				}
+			});
+		}
+		return call.result;
+	}
+
+	public int outstanding() {
+		return outstanding.get();
+	}
+
+	/** Requests that can be sent before the server returns credit. */
+	public int sendWindow() {
+		return sendWindow.get();
+	}
+
+	private boolean takeCredit() {
+		for (;;) {
+			int credit = sendWindow.get();
+			if (credit <= 0) {
+				return false;
+			}
+			if (credit == Integer.MAX_VALUE
+					|| sendWindow.compareAndSet(credit, credit - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void send(final Call call) {
+		if (!ctx.channel().isActive()) {
+			call.result.tryFailure(new ClosedChannelException());
+			return;
+		}
+		final long requestID = ++lastRequestID;
+		pending.put(requestID, call);
+		call.timeout = TIMER.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						if (pending.remove(requestID) != null) {
+							call.result.tryFailure(new TimeoutException(
+									"no response to request " + requestID
+											+ " within " + call.timeoutMillis
+											+ " ms"));
+						}
+					}
+				});
+			}
+		}, call.timeoutMillis, TimeUnit.MILLISECONDS);
+
+		NettyMessage message = new NettyMessage();
+		Header header = new Header();
+		header.setType(MessageType.SERVICE_REQ.value());
+		header.setRequestID(requestID);
+		header.setPriority(call.priority);
+		message.setHeader(header);
+		message.setBody(call.body);
+		ctx.writeAndFlush(message).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				if (!future.isSuccess() && pending.remove(requestID) != null) {
+					call.timeout.cancel();
+					call.result.tryFailure(future.cause());
+				}
+			}
+		});
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		NettyMessage message = (NettyMessage) msg;
+		byte type = message.getHeader() != null ? message.getHeader()
+				.getType() : -1;
+		if (type == MessageType.LOGIN_RESP.value()) {
+			Object window = message.getHeader().getAttachment()
+					.get(NettyConstant.RECEIVE_WINDOW);
+			sendWindow.set(window instanceof Integer ? (Integer) window
+					: Integer.MAX_VALUE);
+			ReferenceCountUtil.release(msg);
+		} else if (type == MessageType.WINDOW_UPDATE.value()) {
+			Object credit = message.getHeader().getAttachment()
+					.get(NettyConstant.RECEIVE_WINDOW);
+			if (credit instanceof Integer
+					&& sendWindow.get() != Integer.MAX_VALUE) {
+				sendWindow.addAndGet((Integer) credit);
+			}
+			ReferenceCountUtil.release(msg);
+		} else if (type == MessageType.SERVICE_RESP.value()) {
+			try {
+				Call call = pending.remove(message.getHeader().getRequestID());
+				if (call != null) {
+					call.timeout.cancel();
+					complete(call, message);
+				}
+			} finally {
+				ReferenceCountUtil.release(msg);
+			}
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	private static void complete(Call call, NettyMessage response) {
+		try {
+			Object error = response.getHeader().getAttachment()
+					.get(NettyConstant.SERVICE_ERROR);
+			if (error != null) {
+				call.result.tryFailure(new Exception(String.valueOf(error)));
+			} else {
+				call.result.trySuccess(response.getBody());
+			}
+		} catch (RuntimeException e) {
+			call.result.tryFailure(e);
+		}
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		List<Call> calls = new ArrayList<Call>(pending.values());
+		pending.clear();
+		for (Call call : calls) {
+			call.timeout.cancel();
+			call.result.tryFailure(new ClosedChannelException());
+		}
+		ctx.fireChannelInactive();
+	}
+
+	private static final class Call {
+		final Object body;
+		final byte priority;
+		final long timeoutMillis;
+		final Promise<Object> result;
+		Timeout timeout;
+
+		Call(Object body, byte priority, long timeoutMillis,
+				Promise<Object> result) {
+			this.body = body;
+			this.priority = priority;
+			this.timeoutMillis = timeoutMillis;
+			this.result = result;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.taobao.netty.protocol.example.client;
+
+import io.netty.util.AttributeKey;
+
+import java.net.SocketAddress;
+
+/**
+ * What a connection slot of {@link NettyClient} needs to resume its session
+ * after a reconnect: the server it logged in to, the session id and the token
+ * from the last LOGIN_RESP. A token is only good for the server that issued
+ * it.
+ */
+final class SessionTicket {
+
+	static final AttributeKey<SessionTicket> KEY = AttributeKey
+			.valueOf("sessionTicket");
+
+	private SocketAddress server;
+	private long sessionID;
+	private long token;
+
+	/**
+	 * Returns session id and token for a LOGIN_REQ to {@code server}, or null
+	 * if there is no session there to resume.
+	 */
+	synchronized long[] resumeAt(SocketAddress server) {
+		if (sessionID == 0 || !server.equals(this.server)) {
+			return null;
+		}
+		return new long[] { sessionID, token };
+	}
+
+	synchronized void issued(SocketAddress server, long sessionID, long token) {
+		this.server = server;
+		this.sessionID = sessionID;
+		this.token = token;
+	}
+
+	synchronized void clear() {
+		server = null;
+		sessionID = 0;
+		token = 0;
+	}
+}
@@ -1,11 +1,13 @@
 package com.taobao.netty.protocol.example.server;
 
-import com.taobao.netty.protocol.example.Header;
 import com.taobao.netty.protocol.example.MessageType;
 import com.taobao.netty.protocol.example.NettyMessage;
+import com.taobao.netty.protocol.example.NettyMessageEncoder;
+import com.taobao.netty.protocol.example.ProtocolSession;
 
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
 
 public class HeartBeatRespHandler extends ChannelHandlerAdapter {
 	@Override
@@ -15,23 +17,12 @@ public class HeartBeatRespHandler extends ChannelHandlerAdapter {
 		if (message.getHeader() != null
 				&& message.getHeader().getType() == MessageType.HEARTBEAT_REQ
 						.value()) {
-			System.out.println("Receive client heart beat message : ---> "
-					+ message);
-			NettyMessage heartBeat = buildHeatBeat();
-			System.out
-					.println("Send heart beat response message to client : ---> "
-							+ heartBeat);
-			ctx.writeAndFlush(heartBeat);
+			ReferenceCountUtil.release(msg);
+			ctx.writeAndFlush(NettyMessageEncoder.typeOnlyFrame(
+					ProtocolSession.get(ctx.channel()),
+					MessageType.HEARTBEAT_RESP));
 		} else
 			ctx.fireChannelRead(msg);
 	}
 
-	private NettyMessage buildHeatBeat() {
-		NettyMessage message = new NettyMessage();
-		Header header = new Header();
-		header.setType(MessageType.HEARTBEAT_RESP.value());
-		message.setHeader(header);
-		return message;
-	}
-
 }
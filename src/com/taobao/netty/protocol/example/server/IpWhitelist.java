@@ -0,0 +1,79 @@
+package com.taobao.netty.protocol.example.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Client addresses allowed to log in, as CIDR prefixes such as
+ * {@code 10.0.0.0/8} or {@code fe80::/10}; an address without a prefix length
+ * stands for itself. The prefixes are kept in a binary trie per address
+ * family, so a lookup reads at most one node per address bit however many
+ * prefixes there are.
+ *
+ * The trie is built in the constructor and never changes, so lookups need no
+ * locking.
+ */
+public final class IpWhitelist {
+
+	private final Node ipv4 = new Node();
+	private final Node ipv6 = new Node();
+
+	public IpWhitelist(String... prefixes) {
+		for (String prefix : prefixes) {
+			add(prefix);
+		}
+	}
+
+	public boolean contains(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		Node node = bytes.length == 4 ? ipv4 : ipv6;
+		for (int bit = 0; !node.allowed; bit++) {
+			if (bit == bytes.length * 8) {
+				return false;
+			}
+			node = node.children[bit(bytes, bit)];
+			if (node == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(String prefix) {
+		int slash = prefix.indexOf('/');
+		String host = slash < 0 ? prefix : prefix.substring(0, slash);
+		byte[] bytes;
+		try {
+			if (!Character.isDigit(host.charAt(0)) && host.indexOf(':') < 0) {
+				throw new IllegalArgumentException("not an address: " + prefix);
+			}
+			bytes = InetAddress.getByName(host).getAddress();
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("not an address: " + prefix, e);
+		}
+		int length = slash < 0 ? bytes.length * 8 : Integer.parseInt(prefix
+				.substring(slash + 1));
+		if (length < 0 || length > bytes.length * 8) {
+			throw new IllegalArgumentException("bad prefix length: " + prefix);
+		}
+		Node node = bytes.length == 4 ? ipv4 : ipv6;
+		for (int bit = 0; bit < length; bit++) {
+			int b = bit(bytes, bit);
+			if (node.children[b] == null) {
+				node.children[b] = new Node();
+			}
+			node = node.children[b];
+		}
+		node.allowed = true;
+	}
+
+	private static int bit(byte[] bytes, int bit) {
+		return bytes[bit >>> 3] >>> (7 - (bit & 7)) & 1;
+	}
+
+	private static final class Node {
+		final Node[] children = new Node[2];
+		/** A prefix ends here, so every address below is allowed. */
+		boolean allowed;
+	}
+}
@@ -1,22 +1,46 @@
 package com.taobao.netty.protocol.example.server;
 
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCountUtil;
 
 import java.net.InetSocketAddress;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+import com.taobao.netty.metrics.SampledLog;
+import com.taobao.netty.protocol.example.Compression;
 import com.taobao.netty.protocol.example.Header;
 import com.taobao.netty.protocol.example.MessageType;
+import com.taobao.netty.protocol.example.NettyConstant;
 import com.taobao.netty.protocol.example.NettyMessage;
+import com.taobao.netty.protocol.example.ProtocolMetrics;
+import com.taobao.netty.protocol.example.ProtocolSession;
+import com.taobao.netty.protocol.example.server.SessionRegistry.ServerSession;
 
 public class LoginAuthRespHandler extends ChannelHandlerAdapter {
 
-	private Map<String, Boolean> nodeCheck = new ConcurrentHashMap<String, Boolean>();
-	private String[] whitekList = { "127.0.0.1" };
+	private static final SampledLog LOG = new SampledLog(10);
+
+	private final SessionRegistry registry;
+	private final int receiveWindow;
+	/** Id of the session logged in on this channel, 0 before login. */
+	private long sessionID;
+
+	public LoginAuthRespHandler(SessionRegistry registry) {
+		this(registry, 0);
+	}
+
+	/**
+	 * @param receiveWindow
+	 *            advertised in every successful LOGIN_RESP, see
+	 *            {@link NettyConstant#RECEIVE_WINDOW}; 0 for none
+	 */
+	public LoginAuthRespHandler(SessionRegistry registry, int receiveWindow) {
+		this.registry = registry;
+		this.receiveWindow = receiveWindow;
+	}
 
 	/**
 	 * Calls {@link ChannelHandlerContext#fireChannelRead(Object)} to forward to
@@ -32,35 +56,77 @@ public class LoginAuthRespHandler extends ChannelHandlerAdapter {
 		if (message.getHeader() != null
 				&& message.getHeader().getType() == MessageType.LOGIN_REQ
 						.value()) {
-			String nodeIndex = ctx.channel().remoteAddress().toString();
 			NettyMessage loginResp = null;
+			boolean refused = false;
 			// 重复登陆，拒?
-			if (nodeCheck.containsKey(nodeIndex)) {
+			if (sessionID != 0) {
 				loginResp = buildResponse((byte) -1);
 			} else {
-				InetSocketAddress address = (InetSocketAddress) ctx.channel()
-						.remoteAddress();
-				String ip = address.getAddress().getHostAddress();
-				boolean isOK = false;
-				for (String WIP : whitekList) {
-					if (WIP.equals(ip)) {
-						isOK = true;
-						break;
+				ProtocolSession protocol = ProtocolSession.get(ctx.channel());
+				loginResp = buildResponse((byte) 0);
+				ServerSession session = resume(ctx, message.getHeader(),
+						loginResp.getHeader(), protocol);
+				if (session == null) {
+					InetSocketAddress address = (InetSocketAddress) ctx
+							.channel().remoteAddress();
+					if (registry.authenticate(address.getAddress())) {
+						protocol.accept(message.getHeader(),
+								loginResp.getHeader());
+						session = registry.open(ctx.channel(), protocol);
+					} else {
+						loginResp = buildResponse((byte) -1);
+						refused = true;
+					}
+				}
+				if (session != null) {
+					sessionID = session.id;
+					ProtocolMetrics.ACTIVE_SESSIONS.increment();
+					loginResp.getHeader().setSessionID(session.id);
+					loginResp.getHeader().getAttachment()
+							.put(NettyConstant.SESSION_TOKEN, session.token);
+					if (receiveWindow > 0) {
+						loginResp.getHeader().getAttachment()
+								.put(NettyConstant.RECEIVE_WINDOW, receiveWindow);
 					}
 				}
-				loginResp = isOK ? buildResponse((byte) 0)
-						: buildResponse((byte) -1);
-				if (isOK)
-					nodeCheck.put(nodeIndex, true);
 			}
-			System.out.println("The login response is : " + loginResp
-					+ " body [" + loginResp.getBody() + "]");
-			ctx.writeAndFlush(loginResp);
+			ReferenceCountUtil.release(msg);
+			if (LOG.sample()) {
+				LOG.log("The login response is : " + loginResp + " body ["
+						+ loginResp.getBody() + "]");
+			}
+			if (refused) {
+				// nothing else may be sent on a channel not let in
+				ctx.writeAndFlush(loginResp).addListener(
+						ChannelFutureListener.CLOSE);
+			} else {
+				ctx.writeAndFlush(loginResp);
+			}
 		} else {
 			ctx.fireChannelRead(msg);
 		}
 	}
 
+	/**
+	 * Resumes the session named in the LOGIN_REQ if its token is valid.
+	 * Otherwise the client logs in from scratch in the same round trip.
+	 */
+	private ServerSession resume(ChannelHandlerContext ctx, Header loginReq,
+			Header loginResp, ProtocolSession protocol) {
+		Object resume = loginReq.getAttachment().get(
+				NettyConstant.RESUME_SESSION);
+		if (!(resume instanceof long[]) || ((long[]) resume).length != 2) {
+			return null;
+		}
+		long[] ticket = (long[]) resume;
+		ServerSession session = registry.resume(ticket[0], ticket[1],
+				ctx.channel());
+		if (session != null) {
+			protocol.resume(session.protocol, loginReq, loginResp);
+		}
+		return session;
+	}
+
 	private NettyMessage buildResponse(byte result) {
 		NettyMessage message = new NettyMessage();
 		Header header = new Header();
@@ -70,10 +136,23 @@ public class LoginAuthRespHandler extends ChannelHandlerAdapter {
 		return message;
 	}
 
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (sessionID != 0) {
+			ProtocolMetrics.ACTIVE_SESSIONS.decrement();
+			registry.detach(sessionID, ctx.channel());
+		}
+		ProtocolSession session = ProtocolSession.get(ctx.channel());
+		if (session.getCompressionCodec() != Compression.NONE && LOG.sample()) {
+			LOG.log("Session " + ctx.channel().remoteAddress() + " closed, "
+					+ session.getCompression());
+		}
+		ctx.fireChannelInactive();
+	}
+
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
 			throws Exception {
 		cause.printStackTrace();
-		nodeCheck.remove(ctx.channel().remoteAddress().toString());// 删除缓存
 		ctx.close();
 		ctx.fireExceptionCaught(cause);
 	}
@@ -1,6 +1,8 @@
 package com.taobao.netty.protocol.example.server;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
@@ -9,44 +11,181 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.timeout.ReadTimeoutHandler;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.MetricsHandler;
+import com.taobao.netty.protocol.example.LivenessHandler;
 import com.taobao.netty.protocol.example.NettyConstant;
 import com.taobao.netty.protocol.example.NettyMessageDecoder;
+import com.taobao.netty.protocol.example.NettyMessage;
 import com.taobao.netty.protocol.example.NettyMessageEncoder;
+import com.taobao.netty.protocol.example.PriorityWriteHandler;
 
 public class NettyServer {
 
+	private static final long READ_TIMEOUT_MILLIS = 50000;
+	/** Calls waiting for a dispatch thread before channels stop reading. */
+	private static final int DISPATCH_CAPACITY = 4096;
+	/** Requests a client may have unfinished on one connection. */
+	private static final int RECEIVE_WINDOW = 256;
+	private static final int WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+	private static final int WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
+	private final ServiceDispatcher dispatcher;
+	private final ServiceExecutor executor;
+	private final SessionRegistry registry = new SessionRegistry(
+			new IpWhitelist("127.0.0.1"));
+
+	/**
+	 * Creates a server that answers every SERVICE_REQ with its own body.
+	 */
+	public NettyServer() {
+		this(new ServiceDispatcher() {
+			@Override
+			public Object dispatch(NettyMessage request) {
+				return request.getBody();
+			}
+		});
+	}
+
+	/**
+	 * Creates a server that runs the dispatcher on a pool of two threads per
+	 * processor.
+	 */
+	public NettyServer(ServiceDispatcher dispatcher) {
+		this(dispatcher, ServiceExecutor.pool(Runtime.getRuntime()
+				.availableProcessors() * 2, DISPATCH_CAPACITY));
+	}
+
+	/**
+	 * @param executor
+	 *            where the dispatcher runs, null for the event loops
+	 */
+	public NettyServer(ServiceDispatcher dispatcher, ServiceExecutor executor) {
+		this.dispatcher = dispatcher;
+		this.executor = executor;
+	}
+
 	public void bind() throws Exception {
+		bind(NettyConstant.PORT);
+	}
+
+	public void bind(int port) throws Exception {
 		EventLoopGroup bossGroup = new NioEventLoopGroup();
 		EventLoopGroup workerGroup = new NioEventLoopGroup();
+		bossGroup.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				registry.sweep();
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+		registerMetrics(port);
 		ServerBootstrap b = new ServerBootstrap();
 		b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
 				.option(ChannelOption.SO_BACKLOG, 100)
+				.childOption(ChannelOption.ALLOCATOR,
+						PooledByteBufAllocator.DEFAULT)
+				.childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK,
+						WRITE_BUFFER_HIGH_WATER_MARK)
+				.childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK,
+						WRITE_BUFFER_LOW_WATER_MARK)
 				.handler(new LoggingHandler(LogLevel.INFO))
 				.childHandler(new ChannelInitializer<SocketChannel>() {
 					@Override
 					public void initChannel(SocketChannel ch)
 							throws IOException {
 						ch.pipeline().addLast(
-								new NettyMessageDecoder(1024 * 1024, 4, 4));
+								new NettyMessageDecoder(1024 * 1024, 4, 4, true));
+						ch.pipeline().addLast(new PriorityWriteHandler());
 						ch.pipeline().addLast(new NettyMessageEncoder());
-						ch.pipeline().addLast("readTimeoutHandler",
-								new ReadTimeoutHandler(50));
-						ch.pipeline().addLast(new LoginAuthRespHandler());
+						ch.pipeline().addLast("LivenessHandler",
+								new LivenessHandler(READ_TIMEOUT_MILLIS, 0));
+						ch.pipeline().addLast(
+								new LoginAuthRespHandler(registry, RECEIVE_WINDOW));
 						ch.pipeline().addLast("HeartBeatHandler",
 								new HeartBeatRespHandler());
+						ch.pipeline().addLast("ServiceHandler",
+								new ServiceRespHandler(dispatcher, executor,
+										RECEIVE_WINDOW));
 					}
 				});
 
-		b.bind(NettyConstant.REMOTEIP, NettyConstant.PORT).sync();
+		b.bind(NettyConstant.REMOTEIP, port).sync();
 		System.out.println("Netty server start ok : "
-				+ (NettyConstant.REMOTEIP + " : " + NettyConstant.PORT));
+				+ (NettyConstant.REMOTEIP + " : " + port));
+	}
+
+	/**
+	 * Adds gauges for the sessions and the service executor of this server,
+	 * labelled with its port, and makes {@link Metrics#DEFAULT} readable over
+	 * JMX.
+	 */
+	private void registerMetrics(int port) {
+		Metrics metrics = Metrics.DEFAULT;
+		metrics.registerMBean("protocol");
+		String label = String.valueOf(port);
+		metrics.gauge(Metrics.name("protocol_sessions", "port", label),
+				new Metrics.Gauge() {
+					@Override
+					public long value() {
+						return registry.size();
+					}
+				});
+		if (executor == null) {
+			return;
+		}
+		metrics.gauge(Metrics.name("service_queue_depth", "port", label),
+				new Metrics.Gauge() {
+					@Override
+					public long value() {
+						return executor.getQueueDepth();
+					}
+				});
+		metrics.gauge(Metrics.name("service_paused_channels", "port", label),
+				new Metrics.Gauge() {
+					@Override
+					public long value() {
+						return executor.getPausedChannels();
+					}
+				});
+		metrics.gauge(Metrics.name("service_completed", "port", label),
+				new Metrics.Gauge() {
+					@Override
+					public long value() {
+						return executor.getCompleted();
+					}
+				});
+		metrics.gauge(Metrics.name("service_wait_micros_avg", "port", label),
+				new Metrics.Gauge() {
+					@Override
+					public long value() {
+						return executor.getAverageWaitMicros();
+					}
+				});
+		metrics.gauge(Metrics.name("service_wait_micros_max", "port", label),
+				new Metrics.Gauge() {
+					@Override
+					public long value() {
+						return executor.getMaxWaitMicros();
+					}
+				});
 	}
 
 	public static void main(String[] args) throws Exception {
-		new NettyServer().bind();
+		new NettyServer().bind(args.length > 0 ? Integer.parseInt(args[0])
+				: NettyConstant.PORT);
+		ChannelFuture metrics = MetricsHandler.listen(new NioEventLoopGroup(1),
+				NettyConstant.REMOTEIP, NettyConstant.METRICS_PORT,
+				Metrics.DEFAULT).awaitUninterruptibly();
+		if (metrics.isSuccess()) {
+			System.out.println("Metrics at http://" + NettyConstant.REMOTEIP
+					+ ":" + NettyConstant.METRICS_PORT + MetricsHandler.PATH);
+		} else {
+			// another server of this host has the port
+			System.out.println("Metrics not served: " + metrics.cause());
+		}
 	}
 }
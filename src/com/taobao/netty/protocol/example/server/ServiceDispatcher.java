@@ -0,0 +1,13 @@
+package com.taobao.netty.protocol.example.server;
+
+import com.taobao.netty.protocol.example.NettyMessage;
+
+/**
+ * Application hook behind {@link ServiceRespHandler}. Called for every
+ * SERVICE_REQ and ONE_WAY message; the result becomes the body of the
+ * SERVICE_RESP, and is dropped for ONE_WAY messages.
+ */
+public interface ServiceDispatcher {
+
+	Object dispatch(NettyMessage request) throws Exception;
+}
@@ -0,0 +1,299 @@
+package com.taobao.netty.protocol.example.server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ServiceDispatcher} calls off the event loops, so a slow service
+ * does not hold up the other channels of a loop. One instance is shared by
+ * all channels of a server.
+ *
+ * The queue is bounded by backpressure rather than by rejecting work: a
+ * channel whose read takes the number of waiting calls to {@code capacity},
+ * or its own number of unfinished calls to {@code channelLimit}, stops
+ * reading until both are down to half. The decoder leaves frames of later
+ * socket reads undecoded meanwhile, so the queue overshoots the limits by at
+ * most the frames of one read.
+ */
+public class ServiceExecutor {
+
+	/** Calls a serial lane runs before it lets other lanes have the thread. */
+	private static final int SERIAL_BATCH = 16;
+
+	private final Executor executor;
+	private final boolean serial;
+	private final int capacity;
+	private final int channelLimit;
+
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final Queue<Lane> paused = new ConcurrentLinkedQueue<Lane>();
+
+	/**
+	 * @param executor
+	 *            runs the calls; any executor will do, for instance one that
+	 *            starts a thread per call
+	 * @param serial
+	 *            whether the calls of each channel run one at a time, in the
+	 *            order they arrived
+	 */
+	public ServiceExecutor(Executor executor, boolean serial, int capacity,
+			int channelLimit) {
+		this.executor = executor;
+		this.serial = serial;
+		this.capacity = capacity;
+		this.channelLimit = channelLimit;
+	}
+
+	/**
+	 * A pool of {@code threads} threads running calls in any order.
+	 */
+	public static ServiceExecutor pool(int threads, int capacity) {
+		return new ServiceExecutor(newPool(threads), false, capacity,
+				Math.max(1, capacity / 4));
+	}
+
+	/**
+	 * A pool of {@code threads} threads where the calls of each channel run
+	 * one at a time, in the order they arrived.
+	 */
+	public static ServiceExecutor serial(int threads, int capacity) {
+		return new ServiceExecutor(newPool(threads), true, capacity,
+				Math.max(1, capacity / 4));
+	}
+
+	private static Executor newPool(int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new DefaultThreadFactory("service", true));
+	}
+
+	/** Calls waiting to start. */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/** Channels not reading because of backpressure. */
+	public int getPausedChannels() {
+		return paused.size();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/** Average time from arrival to start of a call, in microseconds. */
+	public long getAverageWaitMicros() {
+		long count = completed.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos
+				.get() / count);
+	}
+
+	public long getMaxWaitMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+	}
+
+	/**
+	 * Creates the lane of a channel. Calls are submitted to it from the
+	 * channel's event loop.
+	 */
+	Lane newLane(Channel channel) {
+		return new Lane(channel);
+	}
+
+	private void recordWait(long waitNanos) {
+		totalWaitNanos.addAndGet(waitNanos);
+		long max;
+		while (waitNanos > (max = maxWaitNanos.get())
+				&& !maxWaitNanos.compareAndSet(max, waitNanos)) {
+			// retry
+		}
+	}
+
+	/**
+	 * The calls of one channel, with the channel's part of the backpressure.
+	 */
+	final class Lane implements Runnable {
+
+		private final Channel channel;
+		private final AtomicInteger pending = new AtomicInteger();
+		private final Queue<Call> calls = new ConcurrentLinkedQueue<Call>();
+		private final AtomicBoolean running = new AtomicBoolean();
+		private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+		/** Only changed on the event loop. */
+		private volatile boolean readPaused;
+
+		private final Runnable resume = new Runnable() {
+			@Override
+			public void run() {
+				resumeScheduled.set(false);
+				if (readPaused && canResume()) {
+					readPaused = false;
+					paused.remove(Lane.this);
+					// otherwise reading resumes once the channel is writable
+					if (channel.isWritable()) {
+						channel.config().setAutoRead(true);
+						// decode the frames left over when reading stopped
+						channel.pipeline().fireChannelRead(Unpooled.EMPTY_BUFFER);
+					}
+				}
+			}
+		};
+
+		Lane(Channel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Runs {@code task} on the executor. Called from the event loop.
+		 *
+		 * @param rejected
+		 *            run on the event loop instead of {@code task} if a
+		 *            serial lane finds the executor not taking it later
+		 * @throws RejectedExecutionException
+		 *             if the executor does not take it
+		 */
+		void submit(Runnable task, Runnable rejected) {
+			Call call = new Call(task, rejected);
+			queueDepth.incrementAndGet();
+			pending.incrementAndGet();
+			try {
+				if (!serial) {
+					executor.execute(call);
+				} else {
+					calls.add(call);
+					if (running.compareAndSet(false, true)) {
+						try {
+							executor.execute(this);
+						} catch (RejectedExecutionException e) {
+							running.set(false);
+							calls.remove(call);
+							throw e;
+						}
+					}
+				}
+			} catch (RejectedExecutionException e) {
+				queueDepth.decrementAndGet();
+				pending.decrementAndGet();
+				throw e;
+			}
+			if (!readPaused && (queueDepth.get() >= capacity
+					|| pending.get() >= channelLimit)) {
+				readPaused = true;
+				paused.add(this);
+				channel.config().setAutoRead(false);
+			}
+		}
+
+		/** Whether the channel does not read because of this lane. */
+		boolean isReadPaused() {
+			return readPaused;
+		}
+
+		/**
+		 * Stops holding the channel's place among the paused ones. Called from
+		 * the event loop when the channel closes; calls already submitted
+		 * still run.
+		 */
+		void close() {
+			if (readPaused) {
+				readPaused = false;
+				paused.remove(this);
+			}
+		}
+
+		/** Serial mode: runs a batch of this channel's calls in order. */
+		@Override
+		public void run() {
+			for (int i = 0; i < SERIAL_BATCH; i++) {
+				Call call = calls.poll();
+				if (call == null) {
+					running.set(false);
+					if (calls.isEmpty() || !running.compareAndSet(false, true)) {
+						return;
+					}
+					continue;
+				}
+				call.run();
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				rejectQueued();
+			}
+		}
+
+		/**
+		 * Serial mode, when the executor does not take the lane back: hands
+		 * the calls left to the event loop as rejected, so none of them is
+		 * lost and the lane can resume reading.
+		 */
+		private void rejectQueued() {
+			running.set(false);
+			Call call;
+			while ((call = calls.poll()) != null) {
+				queueDepth.decrementAndGet();
+				channel.eventLoop().execute(call.rejected);
+				done();
+			}
+		}
+
+		private boolean canResume() {
+			return pending.get() <= channelLimit / 2
+					&& queueDepth.get() <= capacity / 2;
+		}
+
+		private void done() {
+			pending.decrementAndGet();
+			if (queueDepth.get() > capacity / 2) {
+				return;
+			}
+			for (Lane lane : paused) {
+				lane.scheduleResume();
+			}
+		}
+
+		private void scheduleResume() {
+			if (canResume() && resumeScheduled.compareAndSet(false, true)) {
+				channel.eventLoop().execute(resume);
+			}
+		}
+
+		private final class Call implements Runnable {
+			private final Runnable task;
+			private final Runnable rejected;
+			private final long queuedAt = System.nanoTime();
+
+			Call(Runnable task, Runnable rejected) {
+				this.task = task;
+				this.rejected = rejected;
+			}
+
+			@Override
+			public void run() {
+				queueDepth.decrementAndGet();
+				recordWait(System.nanoTime() - queuedAt);
+				try {
+					task.run();
+				} finally {
+					completed.incrementAndGet();
+					done();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.taobao.netty.protocol.example.server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import com.taobao.netty.metrics.Metrics;
+import com.taobao.netty.metrics.SampledLog;
+import com.taobao.netty.metrics.StripedCounter;
+import com.taobao.netty.protocol.example.Header;
+import com.taobao.netty.protocol.example.MessageType;
+import com.taobao.netty.protocol.example.NettyConstant;
+import com.taobao.netty.protocol.example.NettyMessage;
+import com.taobao.netty.protocol.example.ProtocolSession;
+
+/**
+ * Hands SERVICE_REQ and ONE_WAY messages to a {@link ServiceDispatcher} and
+ * answers SERVICE_REQ with a SERVICE_RESP carrying the same request id and
+ * priority.
+ * Responses may leave in a different order than the requests came in.
+ *
+ * With a {@link ServiceExecutor} the dispatcher runs there, otherwise on the
+ * event loop, which only suits dispatchers that never block.
+ *
+ * With a receive window the client may have that many SERVICE_REQ and
+ * ONE_WAY messages unfinished, see {@link NettyConstant#RECEIVE_WINDOW}. A
+ * request counts until its response has been written to the socket, so a
+ * client that reads slowly stops getting credit back. Credit is returned in
+ * WINDOW_UPDATE messages once a quarter of the window has come together.
+ * While the channel is not writable it stops reading requests.
+ *
+ * Requests on a channel without a logged in session are dropped and the
+ * channel is closed, so a peer cannot call services by skipping the login.
+ */
+public class ServiceRespHandler extends ChannelHandlerAdapter {
+
+	private static final SampledLog LOG = new SampledLog(10);
+	/** ONE_WAY calls whose dispatcher threw; nobody else hears of them. */
+	private static final StripedCounter ONE_WAY_ERRORS = Metrics.DEFAULT
+			.counter("service_one_way_errors");
+
+	private final ServiceDispatcher dispatcher;
+	private final ServiceExecutor executor;
+	private final int updateThreshold;
+	private ServiceExecutor.Lane lane;
+	/** Credit not returned yet; only touched on the event loop. */
+	private int returned;
+	private ChannelHandlerContext ctx;
+
+	private final ChannelFutureListener responseWritten = new ChannelFutureListener() {
+		@Override
+		public void operationComplete(ChannelFuture future) {
+			returnCredit();
+		}
+	};
+
+	private final Runnable returnCredit = new Runnable() {
+		@Override
+		public void run() {
+			returnCredit();
+		}
+	};
+
+	public ServiceRespHandler(ServiceDispatcher dispatcher) {
+		this(dispatcher, null);
+	}
+
+	public ServiceRespHandler(ServiceDispatcher dispatcher,
+			ServiceExecutor executor) {
+		this(dispatcher, executor, 0);
+	}
+
+	/**
+	 * @param receiveWindow
+	 *            the window advertised at login, 0 for none
+	 */
+	public ServiceRespHandler(ServiceDispatcher dispatcher,
+			ServiceExecutor executor, int receiveWindow) {
+		this.dispatcher = dispatcher;
+		this.executor = executor;
+		this.updateThreshold = receiveWindow > 0 ? Math.max(1,
+				receiveWindow / 4) : 0;
+	}
+
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+		if (executor != null) {
+			lane = executor.newLane(ctx.channel());
+		}
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, Object msg)
+			throws Exception {
+		final NettyMessage message = (NettyMessage) msg;
+		byte type = message.getHeader() != null ? message.getHeader()
+				.getType() : -1;
+		if (type == MessageType.SERVICE_REQ.value()
+				|| type == MessageType.ONE_WAY.value()) {
+			if (!ProtocolSession.get(ctx.channel()).isEstablished()) {
+				ReferenceCountUtil.release(msg);
+				ctx.close();
+				return;
+			}
+			if (lane == null) {
+				dispatch(ctx, message);
+				return;
+			}
+			try {
+				lane.submit(new Runnable() {
+					@Override
+					public void run() {
+						dispatch(ctx, message);
+					}
+				}, new Runnable() {
+					@Override
+					public void run() {
+						reject(ctx, message, new RejectedExecutionException(
+								"service executor rejected the call"));
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				reject(ctx, message, e);
+			}
+		} else
+			ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx)
+			throws Exception {
+		if (!ctx.channel().isWritable()) {
+			ctx.channel().config().setAutoRead(false);
+		} else if (!ctx.channel().config().isAutoRead()
+				&& (lane == null || !lane.isReadPaused())) {
+			ctx.channel().config().setAutoRead(true);
+			// decode the frames left over when reading stopped
+			ctx.pipeline().fireChannelRead(Unpooled.EMPTY_BUFFER);
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (lane != null) {
+			lane.close();
+		}
+		ctx.fireChannelInactive();
+	}
+
+	private void dispatch(ChannelHandlerContext ctx, NettyMessage message) {
+		Header request = message.getHeader();
+		if (request.getType() == MessageType.ONE_WAY.value()) {
+			try {
+				dispatcher.dispatch(message);
+			} catch (Exception e) {
+				ONE_WAY_ERRORS.increment();
+				if (LOG.sample()) {
+					LOG.log("ONE_WAY call failed : " + e);
+				}
+			} finally {
+				ReferenceCountUtil.release(message);
+			}
+			if (ctx.executor().inEventLoop()) {
+				returnCredit();
+			} else {
+				ctx.executor().execute(returnCredit);
+			}
+			return;
+		}
+		NettyMessage response;
+		try {
+			response = buildResponse(request, dispatcher.dispatch(message),
+					null);
+		} catch (Exception e) {
+			response = buildResponse(request, null, e);
+		} finally {
+			ReferenceCountUtil.release(message);
+		}
+		ctx.writeAndFlush(response).addListener(responseWritten);
+	}
+
+	private void reject(ChannelHandlerContext ctx, NettyMessage message,
+			Exception cause) {
+		try {
+			if (message.getHeader().getType() == MessageType.SERVICE_REQ
+					.value()) {
+				ctx.writeAndFlush(
+						buildResponse(message.getHeader(), null, cause))
+						.addListener(responseWritten);
+			} else {
+				returnCredit();
+			}
+		} finally {
+			ReferenceCountUtil.release(message);
+		}
+	}
+
+	/**
+	 * Counts one finished request and sends a WINDOW_UPDATE when enough have
+	 * come together. Runs on the event loop.
+	 */
+	private void returnCredit() {
+		if (updateThreshold == 0 || ++returned < updateThreshold) {
+			return;
+		}
+		NettyMessage update = new NettyMessage();
+		Header header = new Header();
+		header.setType(MessageType.WINDOW_UPDATE.value());
+		header.getAttachment().put(NettyConstant.RECEIVE_WINDOW, returned);
+		update.setHeader(header);
+		returned = 0;
+		ctx.writeAndFlush(update);
+	}
+
+	private NettyMessage buildResponse(Header request, Object result,
+			Exception error) {
+		NettyMessage message = new NettyMessage();
+		Header header = new Header();
+		header.setType(MessageType.SERVICE_RESP.value());
+		header.setRequestID(request.getRequestID());
+		header.setPriority(request.getPriority());
+		if (error != null) {
+			header.getAttachment().put(NettyConstant.SERVICE_ERROR,
+					error.toString());
+		}
+		message.setHeader(header);
+		message.setBody(result);
+		return message;
+	}
+}
@@ -0,0 +1,266 @@
+package com.taobao.netty.protocol.example.server;
+
+import io.netty.channel.Channel;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.taobao.netty.protocol.example.ProtocolSession;
+
+/**
+ * Sessions of one server, shared by all its channels. A full login opens a
+ * session with a 64-bit id and a random token; the token comes back in the
+ * LOGIN_RESP. A client that reconnects within {@link #RESUME_WINDOW_MILLIS}
+ * presents id and token in its next LOGIN_REQ and gets the same session
+ * back, with the choices negotiated at the first login, without being
+ * authenticated again. Every resume issues a new token.
+ *
+ * Sessions are kept in open addressing tables keyed by the primitive id,
+ * split into stripes with a lock each, so logins on different event loops
+ * rarely wait for each other.
+ */
+public class SessionRegistry {
+
+	/** How long a session whose channel closed can still be resumed. */
+	public static final long RESUME_WINDOW_MILLIS = 60000;
+
+	private static final int STRIPES = 16;
+
+	private final IpWhitelist whitelist;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong lastID = new AtomicLong(random.nextLong());
+
+	public SessionRegistry(IpWhitelist whitelist) {
+		this.whitelist = whitelist;
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Whether a client at {@code address} may log in without a session to
+	 * resume.
+	 */
+	public boolean authenticate(InetAddress address) {
+		return whitelist.contains(address);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Opens a new session for a client that logged in on {@code channel}.
+	 */
+	ServerSession open(Channel channel, ProtocolSession protocol) {
+		long id;
+		do {
+			id = lastID.incrementAndGet();
+		} while (id == 0);
+		ServerSession session = new ServerSession(id, random.nextLong(),
+				protocol, channel);
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			stripe.put(id, session);
+		}
+		return session;
+	}
+
+	/**
+	 * Moves a session to {@code channel} if {@code token} is its current
+	 * token and it has not expired. Returns the session with its new token,
+	 * or null if it cannot be resumed. A channel the session was still bound
+	 * to is closed.
+	 */
+	ServerSession resume(long id, long token, Channel channel) {
+		Stripe stripe = stripe(id);
+		ServerSession resumed;
+		Channel previous;
+		synchronized (stripe) {
+			ServerSession session = stripe.get(id);
+			if (session == null || session.token != token) {
+				return null;
+			}
+			if (session.expired(System.currentTimeMillis())) {
+				stripe.remove(id);
+				return null;
+			}
+			previous = session.channel;
+			resumed = new ServerSession(id, random.nextLong(),
+					session.protocol, channel);
+			stripe.put(id, resumed);
+		}
+		if (previous != null && previous != channel) {
+			previous.close();
+		}
+		return resumed;
+	}
+
+	/**
+	 * Starts the resume window of a session whose channel closed.
+	 */
+	void detach(long id, Channel channel) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			ServerSession session = stripe.get(id);
+			if (session != null && session.channel == channel) {
+				session.channel = null;
+				session.detachedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Forgets sessions whose resume window has passed. Called periodically
+	 * by the server.
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.removeExpired(now);
+			}
+		}
+	}
+
+	private Stripe stripe(long id) {
+		return stripes[(int) (mix(id) >>> 60)];
+	}
+
+	/** Spreads the bits of sequential ids, see MurmurHash3's fmix64. */
+	private static long mix(long id) {
+		id ^= id >>> 33;
+		id *= 0xff51afd7ed558ccdL;
+		id ^= id >>> 33;
+		id *= 0xc4ceb9fe1a85ec53L;
+		return id ^ id >>> 33;
+	}
+
+	static final class ServerSession {
+		final long id;
+		final long token;
+		/** Choices negotiated at the first login, taken over on resume. */
+		final ProtocolSession protocol;
+		/** Null while detached; guarded by the stripe's lock. */
+		Channel channel;
+		long detachedAt;
+
+		ServerSession(long id, long token, ProtocolSession protocol,
+				Channel channel) {
+			this.id = id;
+			this.token = token;
+			this.protocol = protocol;
+			this.channel = channel;
+		}
+
+		boolean expired(long now) {
+			return channel == null && now - detachedAt > RESUME_WINDOW_MILLIS;
+		}
+	}
+
+	/**
+	 * Linear probing table from id to session. Id 0 marks a free slot, which
+	 * is why no session gets id 0. Callers hold the stripe's lock.
+	 */
+	private static final class Stripe {
+		private long[] ids = new long[16];
+		private ServerSession[] sessions = new ServerSession[16];
+		int size;
+
+		ServerSession get(long id) {
+			int mask = ids.length - 1;
+			for (int i = (int) mix(id) & mask; ids[i] != 0; i = i + 1 & mask) {
+				if (ids[i] == id) {
+					return sessions[i];
+				}
+			}
+			return null;
+		}
+
+		void put(long id, ServerSession session) {
+			int mask = ids.length - 1;
+			int i = (int) mix(id) & mask;
+			for (; ids[i] != 0; i = i + 1 & mask) {
+				if (ids[i] == id) {
+					sessions[i] = session;
+					return;
+				}
+			}
+			ids[i] = id;
+			sessions[i] = session;
+			if (++size > ids.length >> 1) {
+				resize(ids.length << 1);
+			}
+		}
+
+		void remove(long id) {
+			int mask = ids.length - 1;
+			for (int i = (int) mix(id) & mask; ids[i] != 0; i = i + 1 & mask) {
+				if (ids[i] == id) {
+					removeAt(i);
+					return;
+				}
+			}
+		}
+
+		void removeExpired(long now) {
+			for (int i = 0; i < ids.length;) {
+				if (ids[i] != 0 && sessions[i].expired(now)) {
+					// an entry may shift into slot i, so look at it again
+					removeAt(i);
+				} else {
+					i++;
+				}
+			}
+		}
+
+		/**
+		 * Empties slot i and moves later entries of the same probe run back,
+		 * so lookups never need tombstones.
+		 */
+		private void removeAt(int i) {
+			int mask = ids.length - 1;
+			size--;
+			for (int j = i + 1 & mask;; j = j + 1 & mask) {
+				if (ids[j] == 0) {
+					ids[i] = 0;
+					sessions[i] = null;
+					return;
+				}
+				int home = (int) mix(ids[j]) & mask;
+				// move j to i unless its home lies cyclically in (i, j]
+				if (i <= j ? home <= i || home > j : home <= i && home > j) {
+					ids[i] = ids[j];
+					sessions[i] = sessions[j];
+					i = j;
+				}
+			}
+		}
+
+		private void resize(int capacity) {
+			long[] oldIds = ids;
+			ServerSession[] oldSessions = sessions;
+			ids = new long[capacity];
+			sessions = new ServerSession[capacity];
+			int mask = capacity - 1;
+			for (int k = 0; k < oldIds.length; k++) {
+				if (oldIds[k] != 0) {
+					int i = (int) mix(oldIds[k]) & mask;
+					while (ids[i] != 0) {
+						i = i + 1 & mask;
+					}
+					ids[i] = oldIds[k];
+					sessions[i] = oldSessions[k];
+				}
+			}
+		}
+	}
+}
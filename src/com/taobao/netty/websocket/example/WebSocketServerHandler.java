@@ -22,8 +22,12 @@ import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
 import io.netty.util.CharsetUtil;
 
+import com.taobao.netty.metrics.SampledLog;
+
 public class WebSocketServerHandler extends SimpleChannelInboundHandler<Object>{
 	
+	private static final SampledLog LOG = new SampledLog(10);
+	
 	private WebSocketServerHandshaker handshaker;
 
 	@Override
@@ -54,7 +58,9 @@ public class WebSocketServerHandler extends SimpleChannelInboundHandler<Object>{
 		}
 		
 		String request = ((TextWebSocketFrame) frame).text();
-		System.out.println(String.format("%s received %s", ctx.channel(), request));
+		if(LOG.sample()){
+			LOG.log(String.format("%s received %s", ctx.channel(), request));
+		}
 		ctx.channel().write(new TextWebSocketFrame(request + 
 				", ӭʹNetty WebSocket, ʱ䣺 " +
 				new Date().toString()));